@@ -1,6 +1,7 @@
 package com.android.androidperf;
 
 import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
@@ -9,21 +10,22 @@ import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.*;
-import javafx.scene.layout.GridPane;
+import javafx.scene.layout.StackPane;
 import javafx.scene.text.Text;
+import javafx.stage.FileChooser;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import se.vidstige.jadb.JadbDevice;
 import se.vidstige.jadb.JadbException;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
-public class AppController implements Initializable {
+public class AppController implements Initializable, DeviceListener {
     private static final Logger LOGGER = LogManager.getLogger(AppController.class);
     @FXML
     private ComboBox<String> deviceListBox;
@@ -34,18 +36,21 @@ public class AppController implements Initializable {
     @FXML
     private Button perfBtn;
     @FXML
-    private BaseLineChart lineChartFPS;
+    private Button startAllBtn;
     @FXML
-    private BaseLineChart lineChartCPU;
+    private Button stopAllBtn;
     @FXML
-    private CheckableLineChart lineChartNetwork;
-    private final HashMap<String, BaseLineChart> lineChartMap = new HashMap<>();
+    private TabPane deviceTabs;
     @FXML
-    private GridPane checkerTable;
+    private StackPane checkerHolder;
 
     public Device selectedDevice;
     private final HashMap<String, Device> deviceMap = new HashMap<>();
-    private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
+    private final HashMap<String, DeviceView> deviceViews = new HashMap<>();
+    private final HashMap<String, DeviceView> replayViews = new HashMap<>();
+    private final HashMap<String, SessionReplayer> replayers = new HashMap<>();
+    // delay before synchronized starts, so that every device gets its services scheduled first
+    private static final long START_ALL_DELAY = 500;
 
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
@@ -55,8 +60,8 @@ public class AppController implements Initializable {
         // initialize property table
         TableColumn<DeviceProp, String> nameCol = new TableColumn<>("Property");
         TableColumn<DeviceProp, String> valCol = new TableColumn<>("Value");
-        nameCol.setCellValueFactory(cellData -> cellData.getValue().getPropName());
-        valCol.setCellValueFactory(cellData -> cellData.getValue().getPropVal());
+        nameCol.setCellValueFactory(cellData -> new ReadOnlyStringWrapper(cellData.getValue().getPropName()));
+        valCol.setCellValueFactory(cellData -> new ReadOnlyStringWrapper(cellData.getValue().getPropVal()));
         valCol.setCellFactory(col -> {
             TableCell<DeviceProp, String> cell = new TableCell<>();
             Text text = new Text();
@@ -70,8 +75,24 @@ public class AppController implements Initializable {
         nameCol.prefWidthProperty().bind(propTable.widthProperty().multiply(0.38));
         valCol.prefWidthProperty().bind(propTable.widthProperty().multiply(0.62));
 
-        // initialize line charts
-        initAllLineCharts();
+        // follow the device tabs
+        deviceTabs.getSelectionModel().selectedItemProperty().addListener((obs, oldTab, newTab) -> {
+            if (newTab == null)
+                return;
+            String id = (String) newTab.getUserData();
+            DeviceView replayView = replayViews.get(id);
+            if (replayView != null) {
+                checkerHolder.getChildren().setAll(replayView.getCheckerTable());
+                return;
+            }
+            if (!id.equals(deviceListBox.getSelectionModel().getSelectedItem()))
+                deviceListBox.getSelectionModel().select(id);
+            else if (deviceViews.containsKey(id))
+                checkerHolder.getChildren().setAll(deviceViews.get(id).getCheckerTable());
+        });
+
+        // chart updates of all devices are applied in batches
+        UiUpdateQueue.start();
 
         // UI update
         updateUIOnStateChanges();
@@ -81,9 +102,15 @@ public class AppController implements Initializable {
     private void updateDeviceList() {
         try {
             List<JadbDevice> adbDevices = Device.connection.getDevices();
-            ArrayList<String> obsoletes = new ArrayList<>(deviceListBox.getItems());
-            if (selectedDevice != null && selectedDevice.isDeviceAlive()) {
-                obsoletes.remove(selectedDevice.getDeviceADBID());
+            HashSet<String> connected = new HashSet<>();
+            adbDevices.forEach(adbDevice -> connected.add(adbDevice.getSerial()));
+            ArrayList<String> obsoletes = new ArrayList<>();
+            for (String str : deviceListBox.getItems()) {
+                Device device = deviceMap.get(str);
+                // devices that are connected and serving keep running in the background
+                if (device == null || !connected.contains(str) || (device.isServerStarted() && !device.isDeviceAlive())) {
+                    obsoletes.add(str);
+                }
             }
             obsoletes.forEach(str -> {
                 deviceListBox.getItems().remove(str);
@@ -91,7 +118,12 @@ public class AppController implements Initializable {
                 if (device != null) {
                     device.shutdown();
                     deviceMap.remove(str);
+                    if (device == selectedDevice)
+                        selectedDevice = null;
                 }
+                DeviceView view = deviceViews.remove(str);
+                if (view != null)
+                    deviceTabs.getTabs().remove(view.getTab());
             });
             for (JadbDevice adbDevice : adbDevices) {
                 if (deviceMap.get(adbDevice.getSerial()) == null) {
@@ -105,26 +137,89 @@ public class AppController implements Initializable {
         }
     }
 
-    private void initAllLineCharts() {
-        lineChartFPS.initLineChart("FPS", new String[]{"FPS"}, "FPS");
-        lineChartMap.put("FPS", lineChartFPS);
-        lineChartCPU.initLineChart("CPU", new String[]{"App", "Total"}, "%");
-        lineChartMap.put("CPU", lineChartCPU);
-        lineChartNetwork.initLineChart("Network", new String[]{}, "KB/s", checkerTable);
-        lineChartMap.put("Network", lineChartNetwork);
+    @Override
+    public void onPerfStateChanged(Device device) {
+        Platform.runLater(this::updateUIOnStateChanges);
+    }
+
+    @Override
+    public void onPackageListChanged(Device device) {
+        Platform.runLater(() -> {
+            if (device != selectedDevice)
+                return;
+            EventHandler<ActionEvent> handler = packageListBox.getOnAction();
+            packageListBox.setOnAction(null);
+            String selected = packageListBox.getSelectionModel().getSelectedItem();
+            packageListBox.getItems().setAll(device.getPackageList());
+            if (selected != null) {
+                packageListBox.getSelectionModel().select(selected);
+                packageListBox.setValue(selected);
+            }
+            packageListBox.setOnAction(handler);
+        });
     }
 
-    public final BaseLineChart findChart(String chartName) {
-        return lineChartMap.get(chartName);
+    @Override
+    public void onFocusedPackageChanged(Device device, String packageName) {
+        Platform.runLater(() -> {
+            if (device == selectedDevice)
+                movePackageToFront(packageName);
+        });
+    }
+
+    /**
+     * Show the tab and the network interfaces of the selected device, creating its view on first use
+     */
+    private void showDeviceView() {
+        DeviceView view = deviceViews.get(selectedDevice.getDeviceADBID());
+        if (view == null) {
+            view = new DeviceView(selectedDevice);
+            deviceViews.put(selectedDevice.getDeviceADBID(), view);
+            deviceTabs.getTabs().add(view.getTab());
+        }
+        deviceTabs.getSelectionModel().select(view.getTab());
+        checkerHolder.getChildren().setAll(view.getCheckerTable());
+    }
+
+    /**
+     * Fill the panels on the left with the state of the selected device
+     */
+    private void showSelectedDevice() {
+        propTable.getItems().clear();
+
+        // initialize the package list
+        EventHandler<ActionEvent> handler = packageListBox.getOnAction();
+        packageListBox.setOnAction(null);
+        packageListBox.getItems().setAll(selectedDevice.getPackageList());
+        packageListBox.getSelectionModel().select(selectedDevice.getTargetPackage());
+        packageListBox.setOnAction(handler);
+
+        // initialize basic properties of the device
+        ArrayList<DeviceProp> props = selectedDevice.getProps();
+        ObservableList<DeviceProp> data = FXCollections.observableArrayList(props);
+        propTable.getItems().addAll(data);
+
+        showDeviceView();
+
+        // UI update
+        updateUIOnStateChanges();
+        packageListBox.setDisable(false);
+
+        // activate auto refresh task, replacing the one of the previously selected device
+        SamplingScheduler.getInstance().register("ui/focus", this::refreshTask, 0, 500);
     }
 
     public void handleDeviceListBox() {
-        if (selectedDevice != null)
-            selectedDevice.endPerf();
+        // other devices keep profiling in the background
         String deviceID = deviceListBox.getSelectionModel().getSelectedItem();
-        selectedDevice = deviceMap.get(deviceID);
-        if (selectedDevice == null)
+        Device device = deviceMap.get(deviceID);
+        if (device == null || device == selectedDevice)
             return;
+        selectedDevice = device;
+        if (selectedDevice.isServerStarted()) {
+            showSelectedDevice();
+            return;
+        }
 
         Dialog<String> dialog = new Dialog<>();
         //Setting the title
@@ -140,27 +235,13 @@ public class AppController implements Initializable {
         task.setOnSucceeded((e) -> Platform.runLater(() -> {
             dialog.getDialogPane().getButtonTypes().addAll(ButtonType.CANCEL);
             dialog.close();
-            propTable.getItems().clear();
-
-            // initialize the package list
-            packageListBox.setItems(selectedDevice.getPackageList());
-
-            // initialize basic properties of the device
-            ArrayList<DeviceProp> props = selectedDevice.getProps();
-            ObservableList<DeviceProp> data = FXCollections.observableArrayList(props);
-            propTable.getItems().addAll(data);
-
-            // UI update
-            updateUIOnStateChanges();
-            packageListBox.setDisable(false);
-
-            // activate auto refresh task
-            executorService.scheduleAtFixedRate(this::refreshTask, 0, 500, TimeUnit.MILLISECONDS);
+            showSelectedDevice();
         }));
         task.setOnFailed((e) -> {
             dialog.getDialogPane().getButtonTypes().addAll(ButtonType.CANCEL);
             dialog.close();
             MainApplication.alert("Cannot connect device, please retry!", Alert.AlertType.ERROR);
+            selectedDevice = null;
             Platform.runLater(()->deviceListBox.getSelectionModel().clearSelection());
         });
         new Thread(task).start();
@@ -176,7 +257,7 @@ public class AppController implements Initializable {
         EventHandler<ActionEvent> handler = packageListBox.getOnAction();
         packageListBox.setOnAction(null);
         String selected = packageListBox.getSelectionModel().getSelectedItem();
-        var packageList = selectedDevice.getPackageList();
+        var packageList = packageListBox.getItems();
         packageList.remove(packageName);
         packageList.add(0, packageName);
         if (selected != null) {
@@ -200,13 +281,86 @@ public class AppController implements Initializable {
 
     public void handlePerfBtn() {
         if (selectedDevice.getPerfState()) {
+            LOGGER.info(ThreadFootprint.report(deviceMap.size()));
             selectedDevice.endPerf();
         } else {
-            initAllLineCharts();
+            deviceViews.get(selectedDevice.getDeviceADBID()).initLineCharts();
             selectedDevice.startPerf();
         }
     }
 
+    /**
+     * Start profiling on every device that has a target package, with their first samples
+     * taken at the same instant so that the charts line up
+     */
+    public void handleStartAllBtn() {
+        long startTime = System.currentTimeMillis() + START_ALL_DELAY;
+        int started = 0;
+        for (DeviceView view : deviceViews.values()) {
+            Device device = view.getDevice();
+            if (!device.isServerStarted() || device.getTargetPackage() == null || device.getPerfState())
+                continue;
+            view.initLineCharts();
+            device.startPerf(startTime);
+            started++;
+        }
+        LOGGER.info(String.format("Started profiling on %d devices", started));
+    }
+
+    /**
+     * Open a recorded session in a new tab and play it back
+     */
+    public void handleOpenRecordingBtn() {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Open Recording");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("AndroidPerf recordings", "*" + RecordingFormat.FILE_EXTENSION));
+        if (Files.isDirectory(Device.RECORDING_DIR))
+            chooser.setInitialDirectory(Device.RECORDING_DIR.toFile());
+        File file = chooser.showOpenDialog(deviceTabs.getScene().getWindow());
+        if (file != null)
+            openRecording(file.toPath());
+    }
+
+    private void openRecording(Path path) {
+        String id = "replay:" + path.toAbsolutePath();
+        DeviceView existing = replayViews.get(id);
+        if (existing != null) {
+            deviceTabs.getSelectionModel().select(existing.getTab());
+            return;
+        }
+        RecordingReader reader;
+        try {
+            reader = new RecordingReader(path);
+        } catch (IOException e) {
+            LOGGER.error(String.format("Cannot open recording %s", path), e);
+            MainApplication.alert("Cannot open recording " + path.getFileName(), Alert.AlertType.ERROR);
+            return;
+        }
+        if (!reader.isComplete())
+            MainApplication.alert("The recording was not closed properly, only the intact part is shown", Alert.AlertType.WARNING);
+
+        String serial = reader.getMeta().getOrDefault("serial", "?");
+        String title = String.format("%s (replay)", reader.getMeta().getOrDefault("Name", serial));
+        DeviceView view = new DeviceView(title, id);
+        ReplayControls controls = new ReplayControls(view);
+        SessionReplayer replayer = new SessionReplayer(id, reader, view, controls);
+        controls.attach(replayer);
+        replayViews.put(id, view);
+        replayers.put(id, replayer);
+        view.getTab().setOnClosed(e -> {
+            replayers.remove(id).close();
+            replayViews.remove(id);
+        });
+        deviceTabs.getTabs().add(view.getTab());
+        deviceTabs.getSelectionModel().select(view.getTab());
+        replayer.play();
+    }
+
+    public void handleStopAllBtn() {
+        LOGGER.info(ThreadFootprint.report(deviceMap.size()));
+        deviceMap.forEach((s, device) -> device.endPerf());
+    }
+
     public void handleUpdateBtn() {
         updateDeviceList();
         if (selectedDevice != null) {
@@ -214,11 +368,19 @@ public class AppController implements Initializable {
         } else {
             packageListBox.getItems().clear();
             propTable.getItems().clear();
-            checkerTable.getChildren().clear();
+            checkerHolder.getChildren().clear();
         }
     }
 
     public void updateUIOnStateChanges() {
+        boolean anyRunning = false, anyReady = false;
+        for (Device device : deviceMap.values()) {
+            anyRunning |= device.getPerfState();
+            anyReady |= device.isServerStarted() && device.getTargetPackage() != null && !device.getPerfState();
+        }
+        startAllBtn.setDisable(!anyReady);
+        stopAllBtn.setDisable(!anyRunning);
+
         if (selectedDevice == null || selectedDevice.getTargetPackage() == null) {
             if (selectedDevice == null) {
                 deviceListBox.setPromptText("Select connected devices");
@@ -241,7 +403,11 @@ public class AppController implements Initializable {
     }
 
     public void shutdown() {
+        LOGGER.info(ThreadFootprint.report(deviceMap.size()));
         deviceMap.forEach((s, device) -> device.shutdown());
-        executorService.shutdownNow();
+        replayers.values().forEach(SessionReplayer::close);
+        SamplingScheduler.getInstance().shutdown();
+        UiUpdateQueue.stop();
+        Device.connection.close();
     }
 }
@@ -2,6 +2,7 @@ package com.android.androidperf;
 
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.geometry.Point2D;
 import javafx.geometry.Side;
 import javafx.scene.chart.Axis;
 import javafx.scene.chart.LineChart;
@@ -9,18 +10,150 @@ import javafx.scene.chart.NumberAxis;
 import javafx.scene.chart.XYChart;
 import javafx.util.StringConverter;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
-public class BaseLineChart extends LineChart<Number, Number> {
+/**
+ * Line chart of perf samples. All points of a series are kept in a {@link DownsampledSeries},
+ * and the series of the chart only hold about one point per horizontal pixel of the visible
+ * range (the viewport), so the cost of a layout does not grow with the length of the session.
+ *
+ * <p>The viewport follows the newest samples. Scrolling zooms around the cursor and dragging
+ * pans over the whole session, which stops following; a double click goes back to it.</p>
+ */
+public class BaseLineChart extends LineChart<Number, Number> implements PerfChart {
+    private static final double DEFAULT_WINDOW = 120;
+    private static final double MIN_WINDOW = 2;
+    // room left after the newest sample while following
+    private static final double FOLLOW_PADDING = 15;
+    private static final double ZOOM_FACTOR = 1.25;
+    private static final double[] TICK_UNITS = {1, 2, 4, 5, 10, 15, 20, 30, 60, 120, 300, 600, 900, 1800, 3600, 7200};
+
+    private final HashMap<String, DownsampledSeries> seriesData = new HashMap<>();
+    private boolean following = true;
+    private double window = DEFAULT_WINDOW;
+    private double maxX = 0;
+    private double dragX = Double.NaN;
+    // series changed since the last render, and the x range of their new points
+    private final LinkedHashSet<XYChart.Series<Number, Number>> changedSeries = new LinkedHashSet<>();
+    private double changedMinX = Double.POSITIVE_INFINITY;
+    private double changedMaxX = Double.NEGATIVE_INFINITY;
+
     public BaseLineChart() {
         this(new NumberAxis(), new NumberAxis());
     }
 
     public BaseLineChart(Axis<Number> numberAxis, Axis<Number> numberAxis2) {
         super(numberAxis, numberAxis2);
+        numberAxis.widthProperty().addListener((obs, oldWidth, newWidth) -> renderAll());
+        installViewportHandlers();
+    }
+
+    private void installViewportHandlers() {
+        setOnScroll(e -> {
+            if (e.getDeltaY() == 0)
+                return;
+            NumberAxis xAxis = (NumberAxis) getXAxis();
+            double lower = xAxis.getLowerBound(), upper = xAxis.getUpperBound();
+            double anchor = toDataX(e.getSceneX(), e.getSceneY());
+            if (Double.isNaN(anchor) || anchor < lower || anchor > upper)
+                anchor = (lower + upper) / 2;
+            double factor = e.getDeltaY() > 0 ? 1 / ZOOM_FACTOR : ZOOM_FACTOR;
+            double width = Math.max(MIN_WINDOW, Math.min(getHistoryWidth(), (upper - lower) * factor));
+            double ratio = (anchor - lower) / (upper - lower);
+            setViewport(anchor - width * ratio, width);
+            e.consume();
+        });
+        setOnMousePressed(e -> dragX = e.getX());
+        setOnMouseDragged(e -> {
+            if (Double.isNaN(dragX))
+                return;
+            NumberAxis xAxis = (NumberAxis) getXAxis();
+            double axisWidth = xAxis.getWidth();
+            if (axisWidth <= 0)
+                return;
+            double lower = xAxis.getLowerBound(), upper = xAxis.getUpperBound();
+            double shift = (e.getX() - dragX) * (upper - lower) / axisWidth;
+            dragX = e.getX();
+            setViewport(lower - shift, upper - lower);
+        });
+        setOnMouseReleased(e -> dragX = Double.NaN);
+        setOnMouseClicked(e -> {
+            if (e.getClickCount() == 2)
+                followLatest();
+        });
+    }
+
+    private double toDataX(double sceneX, double sceneY) {
+        NumberAxis xAxis = (NumberAxis) getXAxis();
+        Point2D local = xAxis.sceneToLocal(sceneX, sceneY);
+        if (local == null)
+            return Double.NaN;
+        return xAxis.getValueForDisplay(local.getX()).doubleValue();
+    }
+
+    /**
+     * @return width of the whole session, the widest possible viewport
+     */
+    private double getHistoryWidth() {
+        return Math.max(maxX + FOLLOW_PADDING, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Show a range of the session and materialise the points inside it. The viewport keeps
+     * following the newest samples only if it reaches them.
+     *
+     * @param lower start of the range in seconds, clamped to the session
+     * @param width width of the range in seconds
+     */
+    public void setViewport(double lower, double width) {
+        double history = getHistoryWidth();
+        width = Math.max(MIN_WINDOW, Math.min(history, width));
+        lower = Math.max(0, Math.min(lower, history - width));
+        window = width;
+        following = lower + width >= maxX;
+        applyBounds(lower, lower + width);
+    }
+
+    /**
+     * Go back to following the newest samples with the default window
+     */
+    public void followLatest() {
+        window = DEFAULT_WINDOW;
+        following = true;
+        double upper = Math.max(maxX + FOLLOW_PADDING, DEFAULT_WINDOW / 2);
+        applyBounds(Math.max(upper - window, 0), upper);
+    }
+
+    private void applyBounds(double lower, double upper) {
+        NumberAxis xAxis = (NumberAxis) getXAxis();
+        xAxis.setLowerBound(lower);
+        xAxis.setUpperBound(upper);
+        xAxis.setTickUnit(getTickUnit(upper - lower));
+        renderAll();
+    }
+
+    /**
+     * @param width width of the viewport in seconds
+     * @return a tick unit giving about 30 ticks over the viewport
+     */
+    static double getTickUnit(double width) {
+        for (double unit : TICK_UNITS) {
+            if (unit >= width / 30)
+                return unit;
+        }
+        return TICK_UNITS[TICK_UNITS.length - 1];
     }
 
+    public boolean isFollowing() {
+        return following;
+    }
+
+    @Override
     public void initLineChart(String chartName, String[] series, String yLabel) {
         ObservableList<Series<Number, Number>> seriesList = FXCollections.observableArrayList();
         for (String s : series) {
@@ -29,8 +162,16 @@ public class BaseLineChart extends LineChart<Number, Number> {
             seriesList.add(data);
         }
         setData(seriesList);
+        seriesData.clear();
+        changedSeries.clear();
+        changedMinX = Double.POSITIVE_INFINITY;
+        changedMaxX = Double.NEGATIVE_INFINITY;
+        following = true;
+        window = DEFAULT_WINDOW;
+        maxX = 0;
 
-        setAnimated(true);
+        // the points of a series are replaced on every render, animating them makes no sense
+        setAnimated(false);
         setCreateSymbols(false);
         setTitle(chartName);
 
@@ -61,10 +202,45 @@ public class BaseLineChart extends LineChart<Number, Number> {
         setLegendSide(Side.RIGHT);
     }
 
+    /**
+     * @return the points to draw for the visible range, about one per pixel
+     */
+    private int getRenderPoints() {
+        double width = getXAxis().getWidth();
+        return (int) (width > 0 ? width : 800);
+    }
+
+    /**
+     * Replace the points of a series with those to draw for the visible x range
+     */
+    void renderSeries(XYChart.Series<Number, Number> series) {
+        DownsampledSeries data = seriesData.get(series.getName());
+        if (data == null)
+            return;
+        NumberAxis xAxis = (NumberAxis) getXAxis();
+        ArrayList<Data<Number, Number>> points = new ArrayList<>();
+        data.render(xAxis.getLowerBound(), xAxis.getUpperBound(), getRenderPoints(),
+                (x, y) -> points.add(new XYChart.Data<>(x, y)));
+        series.getData().setAll(points);
+    }
+
+    void renderAll() {
+        for (var series : getData()) {
+            renderSeries(series);
+        }
+    }
+
+    /**
+     * @param name name of a series
+     * @return all points of the series, or null
+     */
+    DownsampledSeries getSeriesData(String name) {
+        return seriesData.get(name);
+    }
+
+    @Override
     public void addDataToChart(Map<String, Data<Number, Number>> points) {
         var chartData = getData();
-        NumberAxis xAxis = (NumberAxis) getXAxis();
-        double xBound = xAxis.getUpperBound();
         points.forEach((name, data) -> {
             // O(n^2) search is bad but works in this situation
             int i;
@@ -82,13 +258,56 @@ public class BaseLineChart extends LineChart<Number, Number> {
                 chartData.add(series);
                 series.getNode().setVisible(false);
             }
-            series.getData().add(data);
-            double xVal = data.getXValue().doubleValue();
-            if (xVal > xBound) {
-                xAxis.setUpperBound(xVal + 15);
-                xAxis.setLowerBound(Math.max(xVal + 15 - 120, 0));
-            }
+            seriesData.computeIfAbsent(name, k -> new DownsampledSeries())
+                    .add(data.getXValue().doubleValue(), data.getYValue().doubleValue());
+            changedSeries.add(series);
+            double x = data.getXValue().doubleValue();
+            changedMinX = Math.min(changedMinX, x);
+            changedMaxX = Math.max(changedMaxX, x);
+            maxX = Math.max(maxX, x);
         });
+        UiUpdateQueue.invalidate(this);
+    }
+
+    /**
+     * Render the points stored since the last render
+     */
+    @Override
+    public void flushRender() {
+        NumberAxis xAxis = (NumberAxis) getXAxis();
+        if (following && maxX > xAxis.getUpperBound()) {
+            double upper = maxX + FOLLOW_PADDING;
+            applyBounds(Math.max(upper - window, 0), upper);
+        } else if (changedMinX <= xAxis.getUpperBound() && changedMaxX >= xAxis.getLowerBound()) {
+            // points outside the viewport stay in the backing store only
+            changedSeries.forEach(this::renderSeries);
+        }
+        changedSeries.clear();
+        changedMinX = Double.POSITIVE_INFINITY;
+        changedMaxX = Double.NEGATIVE_INFINITY;
     }
 
+    /**
+     * Range the y axis over the visible series only, the hidden ones may be on another scale
+     */
+    @Override
+    protected void updateAxisRange() {
+        final Axis<Number> ya = getYAxis();
+        // the x axis is never auto ranging, the viewport sets it
+        if (!ya.isAutoRanging())
+            return;
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (Series<Number, Number> series : getData()) {
+            if (!series.getNode().isVisible())
+                continue;
+            for (Data<Number, Number> data : series.getData()) {
+                double y = data.getYValue().doubleValue();
+                min = Math.min(min, y);
+                max = Math.max(max, y);
+            }
+        }
+        // RT-32838 No need to invalidate range if there is one data item - whose value is zero.
+        if (min <= max && !(min == 0 && max == 0))
+            ya.invalidateRange(List.of(min, max));
+    }
 }
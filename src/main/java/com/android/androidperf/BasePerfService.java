@@ -1,38 +1,180 @@
 package com.android.androidperf;
 
-import java.util.concurrent.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Map;
 
 public class BasePerfService extends Thread {
+    private static final Logger LOGGER = LogManager.getLogger(BasePerfService.class);
 
-    protected ConcurrentLinkedQueue<Object> dataQueue = new ConcurrentLinkedQueue<>();
     protected Device device = null;
-    protected long timer = 0;
-    protected Future<?> updateTask = null;
-    protected Future<?> dumpTask = null;
-    protected ScheduledExecutorService executorService = Executors.newScheduledThreadPool(3);
+    /**
+     * Seconds elapsed since the start of the session, at the time of the current sample
+     */
+    protected double timer = 0;
+    /**
+     * Seconds elapsed since the previous sample, 0 for the first sample
+     */
+    protected double interval = 0;
+    private long lastSampleNanos = 0;
+    // push mode, see StreamSampler: uptime of the device at the previous sample, -1 before the first one
+    private volatile boolean streamed = false;
+    private double lastStreamUptime = -1;
+    protected SamplingScheduler.Task updateTask = null;
+    private final ArrayList<SamplingScheduler.Task> tasks = new ArrayList<>();
 
     public String getServiceName() {
         return "Base";
     }
 
-    protected BaseLineChart chart = null;
+    void update() {}
+
+    /**
+     * Hand a sample taken by the current update to the sink of the device
+     *
+     * @param values value of every series of the sample
+     */
+    protected void emit(Map<String, Double> values) {
+        emit(timer, values);
+    }
+
+    /**
+     * Hand a sample taken apart from the current update, e.g. by another task of the service
+     *
+     * @param time   seconds elapsed since the start of the session
+     * @param values value of every series of the sample
+     */
+    protected void emit(double time, Map<String, Double> values) {
+        device.emitSample(getServiceName(), time, values);
+    }
+
+    /**
+     * Hand a batch of values of one series, each with its own time, to the sink of the device
+     *
+     * @param series name of the series
+     * @param times  seconds elapsed since the start of the session, for every value
+     * @param values the values
+     */
+    protected void emitSeries(String series, double[] times, double[] values) {
+        device.emitSeries(getServiceName(), series, times, values);
+    }
+
+    /**
+     * Shell command printing the raw data of one sample, run on the device by the loop of
+     * {@link StreamSampler} in push mode. The variable $n counts the ticks of the loop.
+     *
+     * @return the command, null if the service only pulls its samples
+     */
+    String getStreamCommand() {
+        return null;
+    }
+
+    /**
+     * Take a sample from the output of the stream command, in place of {@link #update()} in push mode.
+     * {@link #interval} is 0 for the first record of a session.
+     *
+     * @param record the output of {@link #getStreamCommand()}
+     */
+    void onStreamRecord(String record) {}
+
+    /**
+     * Mark the service as fed by a {@link StreamSampler}, before it begins
+     *
+     * @param streamed true if the samples come from the stream
+     */
+    void setStreamed(boolean streamed) {
+        this.streamed = streamed;
+    }
+
+    boolean isStreamed() {
+        return streamed;
+    }
+
+    /**
+     * Handle a record of the stream, called on the reader thread of the {@link StreamSampler}.
+     * Records before the start of the session are dropped, and records coming faster than the
+     * sampling period of the service are skipped, the next sample then covers them.
+     *
+     * @param uptime uptime of the device when the record was taken, in seconds
+     * @param tick   period of the loop in milliseconds
+     * @param record the output of the stream command
+     */
+    void streamSample(double uptime, long tick, String record) {
+        long now = System.nanoTime();
+        if (now < device.getPerfStartNanos())
+            return;
+        if (lastStreamUptime >= 0) {
+            double elapsed = uptime - lastStreamUptime;
+            if (elapsed * 1000 < device.getSamplingPeriod(getServiceName()) - tick / 2.)
+                return;
+        }
+        timer = (now - device.getPerfStartNanos()) / 1e9;
+        interval = lastStreamUptime < 0 ? 0 : uptime - lastStreamUptime;
+        lastStreamUptime = uptime;
+        onStreamRecord(record);
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        timer = Math.max(0, now - device.getPerfStartNanos()) / 1e9;
+        interval = lastSampleNanos == 0 ? 0 : (now - lastSampleNanos) / 1e9;
+        lastSampleNanos = now;
+        update();
+    }
+
+    /**
+     * Run a task periodically on the shared {@link SamplingScheduler}.
+     * The task is cancelled when the service ends.
+     *
+     * @param taskName     name of the task within the service
+     * @param task         the task
+     * @param initialDelay delay of the first run in milliseconds
+     * @param period       period in milliseconds
+     * @return the task handle
+     */
+    protected synchronized SamplingScheduler.Task schedule(String taskName, Runnable task, long initialDelay, long period) {
+        String name = String.format("%s/%s/%s", device.getDeviceADBID(), getServiceName(), taskName);
+        SamplingScheduler.Task handle = SamplingScheduler.getInstance().register(name, task, initialDelay, period);
+        tasks.add(handle);
+        return handle;
+    }
+
+    /**
+     * Change the sampling period of a running service
+     *
+     * @param period period in milliseconds
+     */
+    void setPeriod(long period) {
+        SamplingScheduler.Task task = updateTask;
+        if (task != null && !task.isCancelled())
+            task.setPeriod(period);
+    }
 
-    void dump() {}
-    void update() {timer++;}
     void begin() {
-        updateTask = executorService.scheduleAtFixedRate(this::update, 0, 1000, TimeUnit.MILLISECONDS);
-        dumpTask = executorService.scheduleAtFixedRate(this::dump, 1000, 1000, TimeUnit.MILLISECONDS);
-        chart = device.getController().findChart(getServiceName());
+        lastSampleNanos = 0;
+        lastStreamUptime = -1;
+        if (streamed)
+            return;
+        updateTask = schedule("update", this::sample, device.getPerfStartDelay(), device.getSamplingPeriod(getServiceName()));
     }
     void end() {
-        if (updateTask != null)
-            updateTask.cancel(true);
-        if (dumpTask != null)
-            dumpTask.cancel(true);
+        synchronized (this) {
+            if (updateTask != null && updateTask.getRuns() > 0) {
+                LOGGER.info(String.format("%s %s: requested %.2f Hz (%d ms), effective %.2f Hz, %d samples, %d skipped",
+                        device.getDeviceADBID(), getServiceName(), updateTask.getRequestedRate(), updateTask.getPeriod(),
+                        updateTask.getEffectiveRate(), updateTask.getRuns(), updateTask.getSkipped()));
+            }
+            tasks.forEach(SamplingScheduler.Task::cancel);
+            tasks.clear();
+        }
         timer = 0;
-        dataQueue.clear();
+        interval = 0;
+    }
+    void shutdown() {
+        end();
     }
-    void shutdown() {executorService.shutdownNow();}
     void registerDevice(Device dev) {
         device = dev;
     }
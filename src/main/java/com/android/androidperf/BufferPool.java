@@ -0,0 +1,50 @@
+package com.android.androidperf;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of reusable byte arrays, so that decoding server replies does not allocate
+ * a new buffer for every message
+ */
+class BufferPool {
+    static final BufferPool SHARED = new BufferPool(16, 8 * 1024, 4 * 1024 * 1024);
+
+    private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int maxPooled;
+    private final int initialSize;
+    private final int maxBufferSize;
+
+    BufferPool(int maxPooled, int initialSize, int maxBufferSize) {
+        this.maxPooled = maxPooled;
+        this.initialSize = initialSize;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * @return a buffer of at least the initial size
+     */
+    byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null)
+            return new byte[initialSize];
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. Buffers that grew too large are left to the GC.
+     *
+     * @param buffer the buffer, must not be used by the caller afterwards
+     */
+    void release(byte[] buffer) {
+        if (buffer == null || buffer.length > maxBufferSize)
+            return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
@@ -1,9 +1,8 @@
 package com.android.androidperf;
 
-import javafx.application.Platform;
-import javafx.scene.chart.XYChart;
-import javafx.util.Pair;
+import se.vidstige.jadb.managers.Bash;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -11,13 +10,23 @@ import java.util.regex.Pattern;
 public class CPUPerfService extends BasePerfService {
     static private final Pattern totalCPUPattern = Pattern.compile(".* +([\\d.]+)");
     static private final Pattern totalCPUPatternOld = Pattern.compile("([\\d.]+)%");
+    // the processes of the app are looked up again every this many ticks of the stream
+    static private final int STREAM_PID_TICKS = 10;
+
+    // push mode: jiffies of the previous record, in total, idle, and by process of the app
+    private long lastTotalJiffies = -1;
+    private long lastIdleJiffies = 0;
+    private HashMap<String, Long> lastProcJiffies = new HashMap<>();
 
     @Override
     public String getServiceName() {
         return "CPU";
     }
 
-    Pair<Double, Double> acquireCPUData() {
+    /**
+     * @return usage of the target app and total usage, in percent of one core
+     */
+    double[] acquireCPUData() {
         String info = device.execCmd("top -o CMDLINE,%CPU -n 1 -q -b -k%CPU");
         String packageName = device.getTargetPackage();
         Matcher matcher;
@@ -53,21 +62,106 @@ public class CPUPerfService extends BasePerfService {
             totalUsage += usage;
         }
 
-        return new Pair<>(procUsage, totalUsage);
+        return new double[]{procUsage, totalUsage};
     }
 
+    /**
+     * The "cpu" lines of /proc/stat, then /proc/[pid]/stat of the processes of the app
+     */
     @Override
-    void update() {
-        Pair<Double, Double> data = acquireCPUData();
-        double procUsage = data.getKey();
-        double totalUsage = data.getValue();
-
-        Platform.runLater(() -> chart.addDataToChart(Map.ofEntries(
-                    Map.entry("App", new XYChart.Data<>(timer, procUsage / device.getCpuCores())),
-                    Map.entry("Total", new XYChart.Data<>(timer, totalUsage / device.getCpuCores()))
-            )
-        ));
+    String getStreamCommand() {
+        String packageName = device.getTargetPackage();
+        if (packageName == null || packageName.isEmpty())
+            return "grep '^cpu' /proc/stat";
+        return String.format("[ $((n %% %d)) = 0 ] && cpu_stats=$(for p in $(pgrep -f %s); do echo /proc/$p/stat; done)\n"
+                + "grep '^cpu' /proc/stat\n"
+                + "[ -n \"$cpu_stats\" ] && cat $cpu_stats", STREAM_PID_TICKS, Bash.quote(packageName));
+    }
+
+    @Override
+    void onStreamRecord(String record) {
+        long total = -1;
+        long idle = 0;
+        // the online cores, each has a line of its own after the aggregated one
+        int cores = 0;
+        HashMap<String, Long> procJiffies = new HashMap<>();
+        for (String line : record.split("\n")) {
+            if (line.startsWith("cpu ")) {
+                // user nice system idle iowait irq softirq steal, guest time is already in user
+                String[] fields = line.substring(4).strip().split("\\s+");
+                total = 0;
+                for (int i = 0; i < Math.min(8, fields.length); i++) {
+                    long jiffies = parseLong(fields[i]);
+                    total += jiffies;
+                    if (i == 3 || i == 4)
+                        idle += jiffies;
+                }
+            } else if (line.startsWith("cpu")) {
+                cores++;
+            } else {
+                // pid (comm) state ppid ... utime stime, comm may hold spaces and parentheses
+                int pidEnd = line.indexOf(' ');
+                int commEnd = line.lastIndexOf(')');
+                if (pidEnd <= 0 || commEnd < pidEnd)
+                    continue;
+                String[] fields = line.substring(commEnd + 1).strip().split(" ");
+                if (fields.length > 12)
+                    procJiffies.put(line.substring(0, pidEnd), parseLong(fields[11]) + parseLong(fields[12]));
+            }
+        }
+        if (total < 0)
+            return;
+
+        if (lastTotalJiffies >= 0 && total > lastTotalJiffies) {
+            double totalDelta = total - lastTotalJiffies;
+            long procDelta = 0;
+            for (var entry : procJiffies.entrySet()) {
+                Long last = lastProcJiffies.get(entry.getKey());
+                if (last != null && entry.getValue() > last)
+                    procDelta += entry.getValue() - last;
+            }
+            // the jiffies are summed over the online cores, scale to percent of one core like top
+            int scale = Math.max(1, cores) * 100;
+            emitUsage(procDelta / totalDelta * scale, (totalDelta - (idle - lastIdleJiffies)) / totalDelta * scale);
+        }
+        lastTotalJiffies = total;
+        lastIdleJiffies = idle;
+        lastProcJiffies = procJiffies;
+    }
+
+    private static long parseLong(String str) {
+        try {
+            return Long.parseLong(str);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    void begin() {
+        lastTotalJiffies = -1;
+        lastIdleJiffies = 0;
+        lastProcJiffies = new HashMap<>();
+        super.begin();
+    }
 
+    @Override
+    void update() {
+        double[] data = acquireCPUData();
+        emitUsage(data[0], data[1]);
         super.update();
     }
+
+    /**
+     * Emit the usage of both modes on the same scale, the share of all cores of the device
+     *
+     * @param procUsage  usage of the target app in percent of one core
+     * @param totalUsage total usage in percent of one core
+     */
+    private void emitUsage(double procUsage, double totalUsage) {
+        emit(Map.of(
+                "App", procUsage / device.getCpuCores(),
+                "Total", totalUsage / device.getCpuCores()
+        ));
+    }
 }
@@ -0,0 +1,430 @@
+package com.android.androidperf;
+
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.chart.XYChart;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
+import javafx.scene.layout.*;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.TextAlignment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Line chart drawn directly onto a {@link Canvas}, for series with many points per second
+ * such as the time of every frame. Points are kept in {@link DownsampledSeries} and no node
+ * is created per point.
+ *
+ * <p>While the viewport does not move, new points only repaint the strip of the plot from the
+ * previous last point on. The viewport follows the newest points like {@link BaseLineChart},
+ * scrolling zooms, dragging pans and a double click goes back to following. With a checker
+ * table, every series gets a check box toggling its visibility and its legend item.</p>
+ */
+public class CanvasLineChart extends BorderPane implements PerfChart {
+    private static final double DEFAULT_WINDOW = 120;
+    private static final double MIN_WINDOW = 2;
+    // room left after the newest point while following
+    private static final double FOLLOW_PADDING = 15;
+    private static final double ZOOM_FACTOR = 1.25;
+    // the same colors as the default series of LineChart
+    private static final Color[] PALETTE = {
+            Color.web("#f3622d"), Color.web("#fba71b"), Color.web("#57b757"), Color.web("#41a9c9"),
+            Color.web("#4258c9"), Color.web("#9a42c8"), Color.web("#c84164"), Color.web("#888888")
+    };
+    private static final Color AXIS_COLOR = Color.web("#757575");
+    private static final Font TICK_FONT = Font.font("serif", 13);
+    // margins of the plot area within the canvas
+    private static final double LEFT = 64;
+    private static final double RIGHT = 12;
+    private static final double TOP = 8;
+    private static final double BOTTOM = 28;
+
+    private static final class SeriesState {
+        final String name;
+        final Color color;
+        final DownsampledSeries data = new DownsampledSeries();
+        boolean visible;
+        // got new points since the last paint
+        boolean updated = false;
+        // x of the last point painted
+        double paintedX = Double.NaN;
+        CheckBox checkBox;
+        HBox legendItem;
+
+        SeriesState(String name, Color color, boolean visible) {
+            this.name = name;
+            this.color = color;
+            this.visible = visible;
+        }
+    }
+
+    private final Label title = new Label();
+    private final Pane plotPane = new Pane();
+    private final Canvas canvas = new Canvas();
+    private final VBox legendBox = new VBox();
+    private final LinkedHashMap<String, SeriesState> seriesMap = new LinkedHashMap<>();
+    private GridPane checkerTable = null;
+    private String yLabel = "";
+    private double lower = 0;
+    private double upper = 60;
+    private double window = DEFAULT_WINDOW;
+    private double yUpper = 1;
+    private double maxX = 0;
+    private boolean following = true;
+    private boolean fullRepaint = true;
+    private double dragX = Double.NaN;
+
+    public CanvasLineChart() {
+        title.getStyleClass().add("chart-title");
+        setAlignment(title, Pos.CENTER);
+        setTop(title);
+        plotPane.setMinSize(0, 0);
+        plotPane.getChildren().add(canvas);
+        canvas.widthProperty().bind(plotPane.widthProperty());
+        canvas.heightProperty().bind(plotPane.heightProperty());
+        canvas.widthProperty().addListener((obs, oldWidth, newWidth) -> repaint());
+        canvas.heightProperty().addListener((obs, oldHeight, newHeight) -> repaint());
+        setCenter(plotPane);
+        legendBox.setAlignment(Pos.CENTER_LEFT);
+        legendBox.setSpacing(10);
+        legendBox.setPadding(new Insets(10));
+        setRight(legendBox);
+        installViewportHandlers();
+    }
+
+    @Override
+    public void initLineChart(String chartName, String[] series, String yLabel) {
+        title.setText(chartName);
+        this.yLabel = yLabel;
+        seriesMap.clear();
+        legendBox.getChildren().clear();
+        if (checkerTable != null)
+            checkerTable.getChildren().clear();
+        for (String name : series) {
+            addSeries(name, true);
+        }
+        lower = 0;
+        upper = 60;
+        window = DEFAULT_WINDOW;
+        yUpper = 1;
+        maxX = 0;
+        following = true;
+        repaint();
+    }
+
+    /**
+     * Reset the chart, series added later get a check box in the table and start hidden
+     *
+     * @param checkBoxPane table receiving the check boxes
+     */
+    public void initLineChart(String chartName, String[] series, String yLabel, GridPane checkBoxPane) {
+        checkerTable = checkBoxPane;
+        initLineChart(chartName, series, yLabel);
+    }
+
+    private SeriesState addSeries(String name, boolean visible) {
+        SeriesState state = new SeriesState(name, PALETTE[seriesMap.size() % PALETTE.length], visible);
+        seriesMap.put(name, state);
+
+        Region lineSymbol = new Region();
+        lineSymbol.setPrefSize(10, 2);
+        lineSymbol.setBackground(new Background(new BackgroundFill(state.color, null, null)));
+        lineSymbol.getStyleClass().setAll("chart-legend-item-symbol");
+        Label seriesNameLabel = new Label(name);
+        seriesNameLabel.getStyleClass().add("chart-legend-item");
+        seriesNameLabel.setTextFill(Color.BLACK);
+        state.legendItem = new HBox(5, lineSymbol, seriesNameLabel);
+        state.legendItem.setAlignment(Pos.CENTER_LEFT);
+        if (visible)
+            legendBox.getChildren().add(state.legendItem);
+
+        if (checkerTable != null) {
+            CheckBox cb = new CheckBox(name);
+            cb.setSelected(visible);
+            cb.setOnAction(e -> {
+                state.visible = cb.isSelected();
+                if (state.visible)
+                    legendBox.getChildren().add(state.legendItem);
+                else
+                    legendBox.getChildren().remove(state.legendItem);
+                repaint();
+            });
+            int curSize = checkerTable.getChildren().size();
+            int numRow = checkerTable.getRowCount();
+            checkerTable.add(cb, curSize / numRow, curSize % numRow);
+            state.checkBox = cb;
+        }
+        return state;
+    }
+
+    private SeriesState getSeries(String name) {
+        SeriesState state = seriesMap.get(name);
+        // like CheckableLineChart, series appearing later are hidden until checked
+        return state != null ? state : addSeries(name, checkerTable == null);
+    }
+
+    @Override
+    public void addDataToChart(Map<String, XYChart.Data<Number, Number>> points) {
+        points.forEach((name, data) -> addPoint(getSeries(name), data.getXValue().doubleValue(), data.getYValue().doubleValue()));
+        UiUpdateQueue.invalidate(this);
+    }
+
+    @Override
+    public void addSeriesData(String series, double[] xs, double[] ys) {
+        SeriesState state = getSeries(series);
+        for (int i = 0; i < xs.length; i++) {
+            addPoint(state, xs[i], ys[i]);
+        }
+        UiUpdateQueue.invalidate(this);
+    }
+
+    private void addPoint(SeriesState state, double x, double y) {
+        state.data.add(x, y);
+        state.updated = true;
+        maxX = Math.max(maxX, x);
+        // a point above the y range needs a new scale
+        if (state.visible && x >= lower && x <= upper && y > yUpper)
+            fullRepaint = true;
+    }
+
+    @Override
+    public void flushRender() {
+        if (following && maxX > upper) {
+            upper = maxX + FOLLOW_PADDING;
+            lower = Math.max(upper - window, 0);
+            fullRepaint = true;
+        }
+        if (fullRepaint) {
+            paintAll();
+        } else {
+            paintNewPoints();
+        }
+
+        // series without new points since the last paint are grayed out
+        for (SeriesState state : seriesMap.values()) {
+            if (state.checkBox != null) {
+                String style = state.updated ? "-fx-text-fill: black;" : "-fx-text-fill: gray;";
+                if (!style.equals(state.checkBox.getStyle()))
+                    state.checkBox.setStyle(style);
+            }
+            state.updated = false;
+        }
+    }
+
+    private void repaint() {
+        fullRepaint = true;
+        paintAll();
+    }
+
+    private double plotWidth() {
+        return Math.max(canvas.getWidth() - LEFT - RIGHT, 1);
+    }
+
+    private double plotHeight() {
+        return Math.max(canvas.getHeight() - TOP - BOTTOM, 1);
+    }
+
+    private double toPixelX(double x) {
+        return LEFT + (x - lower) / (upper - lower) * plotWidth();
+    }
+
+    private double toPixelY(double y) {
+        return TOP + plotHeight() - y / yUpper * plotHeight();
+    }
+
+    private void paintAll() {
+        fullRepaint = false;
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        if (canvas.getWidth() <= LEFT + RIGHT || canvas.getHeight() <= TOP + BOTTOM)
+            return;
+        yUpper = computeYUpper();
+        paintAxes(gc);
+        paintSeries(gc, lower, LEFT);
+    }
+
+    /**
+     * Repaint the strip of the plot from the earliest last painted point of the updated series
+     */
+    private void paintNewPoints() {
+        double from = Double.POSITIVE_INFINITY;
+        for (SeriesState state : seriesMap.values()) {
+            if (state.updated && state.visible)
+                from = Math.min(from, Double.isNaN(state.paintedX) ? lower : state.paintedX);
+        }
+        if (from == Double.POSITIVE_INFINITY || canvas.getWidth() <= LEFT + RIGHT)
+            return;
+        from = Math.max(from, lower);
+        double left = Math.max(LEFT, Math.floor(toPixelX(from)) - 1);
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(left, TOP, LEFT + plotWidth() - left, plotHeight());
+        paintSeries(gc, from, left);
+    }
+
+    /**
+     * Paint the visible series from an x value on, clipped to the plot area right of a pixel
+     */
+    private void paintSeries(GraphicsContext gc, double from, double left) {
+        gc.save();
+        gc.beginPath();
+        gc.rect(left, TOP, LEFT + plotWidth() - left, plotHeight());
+        gc.clip();
+        gc.setLineWidth(2);
+        int maxPoints = (int) Math.max(LEFT + plotWidth() - left, 3);
+        for (SeriesState state : seriesMap.values()) {
+            if (!state.visible || state.data.size() == 0)
+                continue;
+            gc.setStroke(state.color);
+            gc.beginPath();
+            boolean[] first = {true};
+            state.data.render(from, upper, maxPoints, (x, y) -> {
+                if (first[0])
+                    gc.moveTo(toPixelX(x), toPixelY(y));
+                else
+                    gc.lineTo(toPixelX(x), toPixelY(y));
+                first[0] = false;
+            });
+            gc.stroke();
+            state.paintedX = state.data.getX(state.data.size() - 1);
+        }
+        gc.restore();
+    }
+
+    private double computeYUpper() {
+        double max = 0;
+        for (SeriesState state : seriesMap.values()) {
+            if (!state.visible)
+                continue;
+            double[] seriesMax = {0};
+            state.data.render(lower, upper, (int) plotWidth(), (x, y) -> seriesMax[0] = Math.max(seriesMax[0], y));
+            max = Math.max(max, seriesMax[0]);
+        }
+        double step = getYTickUnit(max * 1.1);
+        return Math.max(step, Math.ceil(max * 1.1 / step) * step);
+    }
+
+    /**
+     * @return a round tick unit giving about 5 ticks up to the value
+     */
+    private static double getYTickUnit(double value) {
+        if (value <= 0)
+            return 0.2;
+        double magnitude = Math.pow(10, Math.floor(Math.log10(value / 5)));
+        for (double unit : new double[]{1, 2, 5, 10}) {
+            if (unit * magnitude >= value / 5)
+                return unit * magnitude;
+        }
+        return 10 * magnitude;
+    }
+
+    private void paintAxes(GraphicsContext gc) {
+        double bottom = TOP + plotHeight();
+        gc.setStroke(AXIS_COLOR);
+        gc.setFill(AXIS_COLOR);
+        gc.setLineWidth(1);
+        gc.strokeLine(LEFT, bottom + 0.5, LEFT + plotWidth(), bottom + 0.5);
+        gc.strokeLine(LEFT - 0.5, TOP, LEFT - 0.5, bottom);
+        gc.setFont(TICK_FONT);
+
+        gc.setTextAlign(TextAlignment.CENTER);
+        gc.setTextBaseline(VPos.TOP);
+        double xUnit = BaseLineChart.getTickUnit(upper - lower);
+        // leave room for the labels, at least 48 pixels each
+        int labelEvery = (int) Math.ceil(48 / (xUnit / (upper - lower) * plotWidth()));
+        long index = (long) Math.ceil(lower / xUnit);
+        for (double x = index * xUnit; x <= upper; x += xUnit, index++) {
+            double px = Math.round(toPixelX(x)) + 0.5;
+            gc.strokeLine(px, bottom, px, bottom + 5);
+            if (index % labelEvery == 0) {
+                long time = (long) x;
+                gc.fillText(String.format("%d:%02d", time / 60, time % 60), px, bottom + 7);
+            }
+        }
+
+        gc.setTextAlign(TextAlignment.RIGHT);
+        gc.setTextBaseline(VPos.CENTER);
+        double yUnit = getYTickUnit(yUpper);
+        for (double y = 0; y <= yUpper + yUnit / 2; y += yUnit) {
+            double py = Math.round(toPixelY(y)) + 0.5;
+            gc.strokeLine(LEFT - 5, py, LEFT, py);
+            gc.fillText(yUnit < 1 ? String.format("%.1f", y) : String.format("%.0f", y), LEFT - 8, py);
+        }
+
+        gc.save();
+        gc.translate(12, TOP + plotHeight() / 2);
+        gc.rotate(-90);
+        gc.setTextAlign(TextAlignment.CENTER);
+        gc.setTextBaseline(VPos.CENTER);
+        gc.fillText(yLabel, 0, 0);
+        gc.restore();
+    }
+
+    private void installViewportHandlers() {
+        plotPane.setOnScroll(e -> {
+            if (e.getDeltaY() == 0)
+                return;
+            double anchor = lower + (e.getX() - LEFT) / plotWidth() * (upper - lower);
+            if (anchor < lower || anchor > upper)
+                anchor = (lower + upper) / 2;
+            double factor = e.getDeltaY() > 0 ? 1 / ZOOM_FACTOR : ZOOM_FACTOR;
+            double width = (upper - lower) * factor;
+            width = Math.max(MIN_WINDOW, Math.min(getHistoryWidth(), width));
+            setViewport(anchor - width * (anchor - lower) / (upper - lower), width);
+            e.consume();
+        });
+        plotPane.setOnMousePressed(e -> dragX = e.getX());
+        plotPane.setOnMouseDragged(e -> {
+            if (Double.isNaN(dragX))
+                return;
+            double shift = (e.getX() - dragX) * (upper - lower) / plotWidth();
+            dragX = e.getX();
+            setViewport(lower - shift, upper - lower);
+        });
+        plotPane.setOnMouseReleased(e -> dragX = Double.NaN);
+        plotPane.setOnMouseClicked(e -> {
+            if (e.getClickCount() == 2)
+                followLatest();
+        });
+    }
+
+    private double getHistoryWidth() {
+        return Math.max(maxX + FOLLOW_PADDING, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Show a range of the session, see {@link BaseLineChart#setViewport(double, double)}
+     *
+     * @param lower start of the range in seconds
+     * @param width width of the range in seconds
+     */
+    public void setViewport(double lower, double width) {
+        double history = getHistoryWidth();
+        width = Math.max(MIN_WINDOW, Math.min(history, width));
+        this.lower = Math.max(0, Math.min(lower, history - width));
+        this.upper = this.lower + width;
+        window = width;
+        following = upper >= maxX;
+        repaint();
+    }
+
+    /**
+     * Go back to following the newest points with the default window
+     */
+    public void followLatest() {
+        window = DEFAULT_WINDOW;
+        following = true;
+        upper = Math.max(maxX + FOLLOW_PADDING, DEFAULT_WINDOW / 2);
+        lower = Math.max(upper - window, 0);
+        repaint();
+    }
+
+    public boolean isFollowing() {
+        return following;
+    }
+}
@@ -1,11 +1,11 @@
 package com.android.androidperf;
 
-import javafx.application.Platform;
 import javafx.css.Styleable;
 import javafx.event.ActionEvent;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.chart.Axis;
+import javafx.scene.chart.NumberAxis;
 import javafx.scene.chart.XYChart;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
@@ -21,6 +21,13 @@ public class CheckableLineChart extends BaseLineChart {
     private final Map<String, CheckBox> checkBoxMap = new LinkedHashMap<>();
     private Map<String, HBox> legendItemMap = new LinkedHashMap<>();
     private VBox legendBox = new VBox();
+    // series that got new points since the last render
+    private final Set<String> updatedSeries = new HashSet<>();
+    // y range of every series within the viewport, and the viewport it was computed for
+    private final Map<String, SlidingExtrema> extremaMap = new HashMap<>();
+    private double extremaLower = Double.NaN;
+    private double extremaWidth = Double.NaN;
+    private boolean extremaFollowing = false;
 
     public CheckableLineChart() {
         super();
@@ -33,6 +40,9 @@ public class CheckableLineChart extends BaseLineChart {
         super.initLineChart(chartName, series, yLabel);
 
         checkBoxMap.clear();
+        updatedSeries.clear();
+        extremaMap.clear();
+        extremaLower = Double.NaN;
         checkerTable = checkBoxPane;
         checkerTable.getChildren().clear();
         setLegend(legendBox);
@@ -50,9 +60,12 @@ public class CheckableLineChart extends BaseLineChart {
     public void addDataToChart(Map<String, Data<Number, Number>> points) {
         super.addDataToChart(points);
 
-        checkBoxMap.forEach((intf, checkBox) -> checkBox.setStyle("-fx-text-fill: gray;"));
-
         points.forEach((seriesName, data) -> {
+            updatedSeries.add(seriesName);
+            // points arriving while following enter the viewport, see updateAxisRange
+            if (isFollowing())
+                extremaMap.computeIfAbsent(seriesName, k -> new SlidingExtrema())
+                        .add(data.getXValue().doubleValue(), data.getYValue().doubleValue());
             checkBoxMap.computeIfAbsent(seriesName, s -> {
                 CheckBox cb = new CheckBox(s);
                 var series = findChartSeries(seriesName);
@@ -93,42 +106,78 @@ public class CheckableLineChart extends BaseLineChart {
                     } else {
                         legendBox.getChildren().remove(legendItemMap.get(text));
                     }
+                    // only the cached ranges of the series are combined again
+                    requestChartLayout();
                 });
-                Platform.runLater(() -> {
-                    int curSize = checkerTable.getChildren().size();
-                    int numRow = checkerTable.getRowCount();
-                    checkerTable.add(cb, curSize / numRow, curSize % numRow);
-                });
+                int curSize = checkerTable.getChildren().size();
+                int numRow = checkerTable.getRowCount();
+                checkerTable.add(cb, curSize / numRow, curSize % numRow);
                 return cb;
-            }).setStyle("-fx-text-fill: black;");
+            });
         });
     }
 
     @Override
-    protected void updateAxisRange() {
-        final Axis<Number> xa = getXAxis();
-        final Axis<Number> ya = getYAxis();
-        List<Number> xData = null;
-        List<Number> yData = null;
-        if (xa.isAutoRanging()) xData = new ArrayList<>();
-        if (ya.isAutoRanging()) yData = new ArrayList<>();
-        if (xData != null || yData != null) {
+    public void flushRender() {
+        super.flushRender();
+
+        // series without new points in this batch are grayed out
+        checkBoxMap.forEach((seriesName, checkBox) -> {
+            String style = updatedSeries.contains(seriesName) ? "-fx-text-fill: black;" : "-fx-text-fill: gray;";
+            if (!style.equals(checkBox.getStyle()))
+                checkBox.setStyle(style);
+        });
+        updatedSeries.clear();
+    }
+
+    /**
+     * Bring the y range of every series up to date with the viewport. While following, the
+     * viewport only slides forward and the points that left it are evicted; after any other
+     * move the ranges are rebuilt from the points drawn for the new viewport.
+     */
+    private void syncExtrema() {
+        NumberAxis xAxis = (NumberAxis) getXAxis();
+        double lower = xAxis.getLowerBound();
+        double width = xAxis.getUpperBound() - lower;
+        boolean sliding = isFollowing() && extremaFollowing && lower >= extremaLower && width == extremaWidth;
+        if (sliding) {
+            extremaMap.values().forEach(extrema -> extrema.evictBefore(lower));
+        } else {
             for (Series<Number, Number> series : getData()) {
-                if (series.getNode().isVisible()) { // consider only visible series
-                    for (Data<Number, Number> data : series.getData()) {
-                        if (xData != null) xData.add(data.getXValue());
-                        if (yData != null) yData.add(data.getYValue());
-                    }
+                SlidingExtrema extrema = extremaMap.computeIfAbsent(series.getName(), k -> new SlidingExtrema());
+                extrema.clear();
+                for (Data<Number, Number> data : series.getData()) {
+                    double x = data.getXValue().doubleValue();
+                    if (x >= lower)
+                        extrema.add(x, data.getYValue().doubleValue());
                 }
             }
-            // RT-32838 No need to invalidate range if there is one data item - whose value is zero.
-            if (xData != null && !(xData.size() == 1 && getXAxis().toNumericValue(xData.get(0)) == 0)) {
-                xa.invalidateRange(xData);
-            }
-            if (yData != null && !(yData.size() == 1 && getYAxis().toNumericValue(yData.get(0)) == 0)) {
-                ya.invalidateRange(yData);
-            }
         }
+        extremaLower = lower;
+        extremaWidth = width;
+        extremaFollowing = isFollowing();
+    }
+
+    @Override
+    protected void updateAxisRange() {
+        final Axis<Number> ya = getYAxis();
+        // the x axis is never auto ranging, the viewport sets it
+        if (!ya.isAutoRanging())
+            return;
+        syncExtrema();
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (Series<Number, Number> series : getData()) {
+            if (!series.getNode().isVisible()) // consider only visible series
+                continue;
+            SlidingExtrema extrema = extremaMap.get(series.getName());
+            if (extrema == null || extrema.isEmpty())
+                continue;
+            min = Math.min(min, extrema.getMin());
+            max = Math.max(max, extrema.getMax());
+        }
+        // RT-32838 No need to invalidate range if there is one data item - whose value is zero.
+        if (min <= max && !(min == 0 && max == 0))
+            ya.invalidateRange(List.of(min, max));
     }
 
     @Override
@@ -0,0 +1,36 @@
+package com.android.androidperf;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes samples as CSV lines "time,service,series,value", one line per series
+ */
+public class CsvSampleSink implements SampleSink, Closeable {
+    private final PrintWriter writer;
+
+    CsvSampleSink(PrintWriter writer) {
+        this.writer = writer;
+        writer.println("time,service,series,value");
+    }
+
+    @Override
+    public synchronized void onSample(String serviceName, double time, Map<String, Double> values) {
+        values.forEach((series, value) ->
+                writer.printf(Locale.ROOT, "%.3f,%s,%s,%.3f%n", time, serviceName, quote(series), value));
+        writer.flush();
+    }
+
+    private static String quote(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0)
+            return field;
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    @Override
+    public synchronized void close() {
+        writer.close();
+    }
+}
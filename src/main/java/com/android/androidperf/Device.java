@@ -1,10 +1,5 @@
 package com.android.androidperf;
 
-import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
-import javafx.scene.control.CheckBox;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import se.vidstige.jadb.JadbConnection;
@@ -12,23 +7,54 @@ import se.vidstige.jadb.JadbDevice;
 import se.vidstige.jadb.JadbDevice.ForwardType;
 import se.vidstige.jadb.JadbException;
 import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.TransportPool;
+import se.vidstige.jadb.managers.Bash;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
-import java.net.InetAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 public class Device {
     private static final Logger LOGGER = LogManager.getLogger(Device.class);
     static JadbConnection connection = new JadbConnection();
+    private static final int TRANSPORT_POOL_SIZE = 3;
+    private static final boolean USE_SHELL_SESSION = Boolean.getBoolean("androidperf.shellSession");
+    private static final boolean USE_NIO_ENGINE = Boolean.getBoolean("androidperf.nio");
+    private static final boolean USE_STREAM = Boolean.getBoolean("androidperf.stream");
+
+    static {
+        // keep a few transports per device already switched to the device, so that the
+        // frequent exec commands of perf services skip the host:transport round-trip
+        connection.enableTransportPool(TRANSPORT_POOL_SIZE);
+        if (USE_NIO_ENGINE) {
+            try {
+                connection.enableAsyncEngine(1);
+            } catch (IOException e) {
+                LOGGER.error("Cannot start NIO transport engine, using blocking transports", e);
+            }
+        }
+    }
     private final JadbDevice jadbDevice;
-    private final AppController controller;
+    private final DeviceListener listener;
+    private final CopyOnWriteArrayList<SampleSink> sampleSinks = new CopyOnWriteArrayList<>();
+    private SessionRecorder recorder = null;
+    private static final boolean RECORDING_ENABLED = Boolean.parseBoolean(System.getProperty("androidperf.record", "true"));
+    static final Path RECORDING_DIR = Path.of(System.getProperty("androidperf.recordings", "recordings"));
+    private final ShellSession shellSession;
+    private volatile StreamSampler streamSampler = null;
 
     private final String deviceADBID;
     private final String deviceName;
@@ -46,36 +72,45 @@ public class Device {
     private final ArrayList<DeviceProp> props = new ArrayList<>();
 
     private final ArrayList<BasePerfService> services = new ArrayList<>();
-    private final ArrayList<Layer> layers = new ArrayList<>();
-    private final ObservableList<String> packageList = FXCollections.observableArrayList();
+    // replaced as a whole whenever the layers change, read without locking
+    private final AtomicReference<LayerSnapshot> layerSnapshot = new AtomicReference<>(LayerSnapshot.EMPTY);
+    private volatile List<String> packageList = List.of();
     private String lastLayerInfo = "";
     private String targetPackage;
     private int targetPackageUid;
 
-    private boolean hasStartedPerf = false;
+    private volatile boolean hasStartedPerf = false;
+    private volatile boolean serverStarted = false;
+    private long perfStartTime = 0;
+    private volatile long perfStartNanos = 0;
+    static final long DEFAULT_SAMPLING_PERIOD = 1000;
+    private final ConcurrentHashMap<String, Long> samplingPeriods = new ConcurrentHashMap<>();
     private int localPort = -1;
+    private volatile ServerConnectionPool serverPool = null;
+    private final ReentrantLock serverRestartLock = new ReentrantLock();
 
     private static final String SERVER_PATH_BASE = "/data/local/tmp";
     private static final String SERVER_EXECUTABLE = "AndroidPerfServer";
     private static final String SERVER_FW_EXECUTABLE = "AndroidPerfServerFW";
     private static final String MSG_END = "PERF_MSG_END\n";
     private static final String UNIX_SOCKET = "AndroidPerf";
+    private static final int SERVER_CONNECTIONS = 3;
+    private static final int SERVER_TIMEOUT = 5000;
+    private static final int EXEC_TIMEOUT = 15000;
+    // runs the blocking fallback of execCmdAsync, apart from the sampling workers
+    private static final ExecutorService asyncExecutor = Executors.newCachedThreadPool(PerfExecutors.namedThreadFactory("perf-exec"));
+    private static final PerfReply.Decoder replyDecoder = new PerfReply.Decoder(MSG_END);
     private static final Pattern cpuModelPattern = Pattern.compile("model name\\s*:\\s*(.*)");
     private static final Pattern cpuCorePattern = Pattern.compile("cpu\\d+");
     private static final Pattern cpuFreqPattern = Pattern.compile("cpu MHz\\s*:\\s*(.*)");
-    private static final Pattern layerNamePattern = Pattern.compile("[*+] .*Layer.*\\(.*\\).*");
-    private static final Pattern bufferSizePattern = Pattern.compile("activeBuffer=\\[([ \\d]+)x([ \\d]+):.*");
-    private static final Pattern bufferPosPattern = Pattern.compile("pos=\\(\\s*(-?\\d+),\\s*(-?\\d+)\\),");
-    private static final Pattern bufferZOrderPattern = Pattern.compile("z=\\s*(-?\\d+),");
-    private static final Pattern bufferParentPattern = Pattern.compile("parent=(\\S+)");
-    private static final Pattern bufferZRelativeOrderPattern = Pattern.compile("zOrderRelativeOf=(\\S+)");
-
-    private static final Pattern bufferStatsPatternR = Pattern.compile(".*slot=(\\S*)");
 
-    Device(JadbDevice device, AppController appController) {
+    Device(JadbDevice device, DeviceListener deviceListener) {
         jadbDevice = device;
-        controller = appController;
+        listener = deviceListener;
         deviceADBID = jadbDevice.getSerial();
+        // a hung command must not hold its thread forever
+        jadbDevice.setExecTimeout(EXEC_TIMEOUT);
+        shellSession = USE_SHELL_SESSION ? new ShellSession(jadbDevice) : null;
         killServer();
 
         // register perf services
@@ -230,18 +265,43 @@ public class Device {
     }
 
     /**
-     * Start all profiling services
+     * Start all profiling services now
      */
     void startPerf() {
+        startPerf(System.currentTimeMillis());
+    }
+
+    /**
+     * Start all profiling services, with their first samples taken at the given time,
+     * so that several devices can be started in sync
+     *
+     * @param startTime time of the first samples, in epoch milliseconds
+     */
+    void startPerf(long startTime) {
         if (hasStartedPerf) {
             endPerf();
         }
 
+        perfStartTime = startTime;
+        perfStartNanos = System.nanoTime() + (startTime - System.currentTimeMillis()) * 1000000;
+        startRecording();
+        ArrayList<BasePerfService> streamed = new ArrayList<>();
+        if (USE_STREAM) {
+            for (var service : services) {
+                if (service.getStreamCommand() != null)
+                    streamed.add(service);
+            }
+        }
+        streamed.forEach(service -> service.setStreamed(true));
         for (var service : services) {
             service.begin();
         }
+        if (!streamed.isEmpty()) {
+            streamSampler = new StreamSampler(jadbDevice, streamed, getStreamPeriod());
+            streamSampler.start();
+        }
         hasStartedPerf = true;
-        Platform.runLater(controller::updateUIOnStateChanges);
+        listener.onPerfStateChanged(this);
     }
 
     /**
@@ -249,12 +309,18 @@ public class Device {
      */
     void endPerf() {
         if (hasStartedPerf) {
+            if (streamSampler != null) {
+                streamSampler.close();
+                streamSampler = null;
+            }
             for (var service : services) {
                 service.end();
+                service.setStreamed(false);
             }
             hasStartedPerf = false;
+            stopRecording();
         }
-        Platform.runLater(controller::updateUIOnStateChanges);
+        listener.onPerfStateChanged(this);
     }
 
     /**
@@ -265,6 +331,144 @@ public class Device {
         for (var service : services) {
             service.shutdown();
         }
+        SamplingScheduler.getInstance().cancelAll(deviceADBID + "/");
+        if (shellSession != null)
+            shellSession.close();
+        if (serverPool != null) {
+            LOGGER.info(serverPool);
+            serverPool.close();
+        }
+        TransportPool pool = connection.getTransportPool(deviceADBID);
+        if (pool != null)
+            LOGGER.info(pool);
+        connection.closeTransportPool(deviceADBID);
+    }
+
+    /**
+     * @return delay until the first samples of the running session, in milliseconds
+     */
+    long getPerfStartDelay() {
+        return Math.max(0, perfStartTime - System.currentTimeMillis());
+    }
+
+    /**
+     * @param serviceName name of a perf service, e.g. "FPS"
+     * @return sampling period of the service in milliseconds, by default -Dandroidperf.period.&lt;service&gt; or 1 s
+     */
+    long getSamplingPeriod(String serviceName) {
+        return samplingPeriods.computeIfAbsent(serviceName,
+                k -> Long.getLong("androidperf.period." + k, DEFAULT_SAMPLING_PERIOD));
+    }
+
+    /**
+     * Set the sampling period of a perf service, a running service adopts it from its next sample
+     *
+     * @param serviceName name of a perf service, e.g. "FPS"
+     * @param period      period in milliseconds, within [50 ms, 10 s]
+     */
+    void setSamplingPeriod(String serviceName, long period) {
+        period = Math.max(SamplingScheduler.MIN_PERIOD, Math.min(SamplingScheduler.MAX_PERIOD, period));
+        samplingPeriods.put(serviceName, period);
+        if (hasStartedPerf) {
+            for (var service : services) {
+                if (service.getServiceName().equals(serviceName))
+                    service.setPeriod(period);
+            }
+            StreamSampler sampler = streamSampler;
+            if (sampler != null)
+                sampler.setPeriod(getStreamPeriod());
+        }
+    }
+
+    /**
+     * @return period of the stream loop in milliseconds: the shortest period of the streamed services
+     */
+    private long getStreamPeriod() {
+        long period = SamplingScheduler.MAX_PERIOD;
+        for (var service : services) {
+            if (service.isStreamed())
+                period = Math.min(period, getSamplingPeriod(service.getServiceName()));
+        }
+        return period;
+    }
+
+    /**
+     * @param sink receiver of the samples of all perf services
+     */
+    void addSampleSink(SampleSink sink) {
+        sampleSinks.addIfAbsent(sink);
+    }
+
+    void removeSampleSink(SampleSink sink) {
+        sampleSinks.remove(sink);
+    }
+
+    /**
+     * Record the session to a new file in the recording directory, unless -Dandroidperf.record=false
+     */
+    private synchronized void startRecording() {
+        stopRecording();
+        if (!RECORDING_ENABLED)
+            return;
+        LinkedHashMap<String, String> meta = new LinkedHashMap<>();
+        meta.put("serial", deviceADBID);
+        meta.put("package", targetPackage);
+        meta.put("start", String.valueOf(perfStartTime));
+        for (DeviceProp prop : props) {
+            meta.put(prop.getPropName(), prop.getPropVal());
+        }
+        Path path = SessionRecorder.newRecordingPath(RECORDING_DIR, deviceADBID);
+        try {
+            recorder = new SessionRecorder(path, meta);
+            addSampleSink(recorder);
+            LOGGER.info(String.format("Recording %s to %s", deviceADBID, path));
+        } catch (IOException e) {
+            LOGGER.error(String.format("Cannot create recording %s", path), e);
+        }
+    }
+
+    private synchronized void stopRecording() {
+        if (recorder == null)
+            return;
+        removeSampleSink(recorder);
+        recorder.close();
+        recorder = null;
+    }
+
+    /**
+     * @return the time base of the running session, in {@link System#nanoTime()} units
+     */
+    long getPerfStartNanos() {
+        return perfStartNanos;
+    }
+
+    /**
+     * Hand a sample of a perf service to the sink
+     *
+     * @param serviceName name of the perf service
+     * @param time        seconds elapsed since the start of the session
+     * @param values      value of every series
+     */
+    void emitSample(String serviceName, double time, Map<String, Double> values) {
+        for (SampleSink sink : sampleSinks) {
+            sink.onSample(serviceName, time, values);
+        }
+    }
+
+    /**
+     * Hand a batch of values of one series to the sinks, see {@link SampleSink#onSeries}
+     */
+    void emitSeries(String serviceName, String series, double[] times, double[] values) {
+        for (SampleSink sink : sampleSinks) {
+            sink.onSeries(serviceName, series, times, values);
+        }
+    }
+
+    /**
+     * @return true once the AndroidPerf server has been started on the device
+     */
+    boolean isServerStarted() {
+        return serverStarted;
     }
 
     /**
@@ -286,8 +490,10 @@ public class Device {
         Pattern namePattern = Pattern.compile(" {8}\\S+ (\\S+)/.+");
 
         // show all packages with the MAIN intent, which indicates that the app can be opened from the launcher
-        String packageInfo = execCmd("dumpsys package r activity");
-        String processInfo = execCmd("ps -A");
+        CompletableFuture<String> packageFuture = execCmdAsync("dumpsys package r activity");
+        CompletableFuture<String> processFuture = execCmdAsync("ps -A");
+        String packageInfo = packageFuture.join();
+        String processInfo = processFuture.join();
 
         int start = packageInfo.indexOf(mainIntent);
         if (start != -1) {
@@ -306,7 +512,8 @@ public class Device {
                 }
             }
         }
-        Platform.runLater(() -> packageList.setAll(packages));
+        packageList = Collections.unmodifiableList(packages);
+        listener.onPackageListChanged(this);
     }
 
     /**
@@ -319,155 +526,63 @@ public class Device {
         focusedWindow = focusedWindow.replace("}", "");
         String[] packageInfo = focusedWindow.split("/");
         String packageName = packageInfo[0];
-        if (packageInfo.length == 2 && !packageList.get(0).equals(packageName)) {
-            Platform.runLater(() -> {
-                controller.movePackageToFront(packageName);
-            });
+        List<String> packages = packageList;
+        if (packageInfo.length == 2 && !packages.isEmpty() && !packages.get(0).equals(packageName)) {
+            ArrayList<String> reordered = new ArrayList<>(packages);
+            reordered.remove(packageName);
+            reordered.add(0, packageName);
+            packageList = Collections.unmodifiableList(reordered);
+            listener.onFocusedPackageChanged(this, packageName);
         }
     }
 
     /**
-     * Update the layer info of the currently selected package
+     * Update the layer info of the currently selected package, and publish a new snapshot if it has changed
      *
      * @return true if the layers have changed
      */
     public synchronized boolean updateLayerList() {
-        ArrayList<Layer> updatedLayerList = new ArrayList<>();
-        String layerListInfo = new String(sendMSG("list"));
+        String layerListInfo = sendMSGString("list");
         if (layerListInfo.isEmpty())
             layerListInfo = execCmd("dumpsys SurfaceFlinger --list");
         if (layerListInfo.equals(lastLayerInfo))
             return false;
 
         String[] layerListFull = layerListInfo.split("\n");
-        LinkedBlockingDeque<String> layerList = Arrays.stream(layerListFull)
-                .filter(str -> str.contains(targetPackage)).collect(Collectors.toCollection(LinkedBlockingDeque::new));
-        if (layerList.isEmpty()) {
-            boolean isChanged = !layers.isEmpty();
-            layers.clear();
-            return isChanged;
-        }
+        if (Arrays.stream(layerListFull).noneMatch(str -> str.contains(targetPackage)))
+            return publishLayers(List.of());
 
         String info = execCmd("dumpsys SurfaceFlinger | grep -E '(\\+|\\*).*Layer.*|buffer:.*slot|activeBuffer|parent|z=|pos=|parent=|zOrderRelativeOf='");
 
-        Pattern pattern;
-        Matcher matcher;
-        Matcher bufferMatcher;
-        HashMap<String, Integer> idMap = new HashMap<>();
-
-        while (!layerList.isEmpty()) {
-            String layerName = layerList.poll();
-            pattern = Pattern.compile(String.format("[*+] .*Layer.*\\((%s.*)\\).*", Pattern.quote(layerName)));
-            matcher = pattern.matcher(info);
-            while (matcher.find()) {
-                int end = matcher.end();
-                int start = matcher.start();
-                String bufferInfo = info.substring(end);
-                Matcher layerMatcher = layerNamePattern.matcher(bufferInfo);
-                if (layerMatcher.find())
-                    bufferInfo = bufferInfo.substring(0, layerMatcher.start());
-                Layer layer;
-                layerList.addAll(findChildrenLayers(layerName, info, layerListFull).stream().filter(i -> !layerList.contains(i)).collect(Collectors.toList()));
-
-                // * Layer 0x7615a5469f98 (SurfaceView - com.android.chrome/com.google.android.apps.chrome.Main#0)
-                //      buffer: buffer=0x7615a547b140 slot=2
-                bufferMatcher = bufferStatsPatternR.matcher(bufferInfo);
-                if (bufferMatcher.find()) {
-                    continue;
-                }
-
-                // + Layer 0x7f162ba23000 (StatusBar#0)
-                //      format= 1, activeBuffer=[1440x  84:1440,  1], queued-frames=0, mRefreshPending=0
-                bufferMatcher = bufferSizePattern.matcher(bufferInfo);
-                if (bufferMatcher.find()) {
-                    int w = Integer.parseInt(bufferMatcher.group(1).strip());
-                    int h = Integer.parseInt(bufferMatcher.group(2).strip());
-                    Matcher zMatcher = bufferZOrderPattern.matcher(bufferInfo);
-                    Matcher posMatcher = bufferPosPattern.matcher(bufferInfo);
-                    int x = -1;
-                    int y = -1;
-                    int z = -1;
-                    try {
-                        if (posMatcher.find()) {
-                            x = Integer.parseInt(posMatcher.group(1).strip());
-                            y = Integer.parseInt(posMatcher.group(1).strip());
-                        }
-                        if (zMatcher.find())
-                            z = Integer.parseInt(zMatcher.group(1).strip());
-                    } catch (NumberFormatException e) {
-                        LOGGER.error(bufferInfo + e);
-                    }
-
-                    int id = idMap.getOrDefault(layerName, 0);
-                    layer = new Layer(layerName, targetPackage, true, id, w, h, x, y, z);
-                    idMap.put(layerName, id + 1);
-
-                    info = info.replace(info.substring(start, end + bufferInfo.length()), "");
-                    updatedLayerList.add(layer);
-                    break;
-                }
-            }
-        }
+        ArrayList<Layer> foundLayers = LayerTree.parse(info).findLayers(targetPackage, layerListFull);
 
         // check whether a layer is overlapped by other layers and thus invisible to users
-        updatedLayerList.sort(Comparator.comparingInt(o -> o.z));
-        for (int i = 0; i < updatedLayerList.size() - 1; i++) {
-            Layer layerToCheck = updatedLayerList.get(i);
-            if (!layerToCheck.isVisible)
-                continue;
-            for (int j = i + 1; j < updatedLayerList.size(); j++) {
-                Layer layer = updatedLayerList.get(j);
-                if (!layer.isVisible)
-                    continue;
-                if (layerToCheck.isCoveredBy(layer))
-                    layerToCheck.isVisible = false;
+        foundLayers.sort(Comparator.comparingInt(o -> o.z));
+        ArrayList<Layer> updatedLayerList = new ArrayList<>(foundLayers.size());
+        for (int i = 0; i < foundLayers.size(); i++) {
+            Layer layerToCheck = foundLayers.get(i);
+            boolean isCovered = false;
+            for (int j = i + 1; j < foundLayers.size() && layerToCheck.isVisible && !isCovered; j++) {
+                Layer layer = foundLayers.get(j);
+                isCovered = layer.isVisible && layerToCheck.isCoveredBy(layer);
             }
+            updatedLayerList.add(isCovered ? layerToCheck.hide() : layerToCheck);
         }
 
         lastLayerInfo = layerListInfo;
-        if (layers.equals(updatedLayerList)) {
-            return false;
-        } else {
-            layers.clear();
-            layers.addAll(updatedLayerList);
-            return true;
-        }
+        return publishLayers(updatedLayerList);
     }
 
     /**
-     * Reconstruct the layer dependency from the layer info
-     * and extract all the children layers for a parent layer,
-     * so that we can extract overlay layers
-     *
-     * @param parent        the parent layer
-     * @param info          the layer info
-     * @param layerListFull the full layer list
-     * @return the children layer
+     * @param updatedLayerList the new layers
+     * @return true if they differ from the current snapshot, which is then replaced
      */
-    private ArrayList<String> findChildrenLayers(String parent, String info, String[] layerListFull) {
-        Pattern parentPattern = Pattern.compile(String.format("parent=(%s)", Pattern.quote(parent)));
-        Matcher matcher = parentPattern.matcher(info);
-        ArrayList<String> children = new ArrayList<>();
-        while (matcher.find()) {
-            String layerInfo = info.substring(0, matcher.start());
-            Matcher layerMatcher;
-            layerMatcher = layerNamePattern.matcher(layerInfo);
-            List<String> matches = layerMatcher.results().map((r) -> layerInfo.substring(r.start(), r.end())).collect(Collectors.toList());
-            String name = matches.get(matches.size() - 1);
-            if (name != null) {
-                Pattern pattern;
-                Matcher nameMatcher;
-                for (var layerName : layerListFull) {
-                    pattern = Pattern.compile(String.format("[*+] .*Layer.*\\((%s.*)\\).*", Pattern.quote(layerName)));
-                    nameMatcher = pattern.matcher(name);
-                    if (nameMatcher.find()) {
-                        children.add(layerName);
-                        break;
-                    }
-                }
-            }
-        }
-        return children;
+    private boolean publishLayers(List<Layer> updatedLayerList) {
+        LayerSnapshot snapshot = layerSnapshot.get();
+        if (snapshot.getLayers().equals(updatedLayerList))
+            return false;
+        layerSnapshot.set(snapshot.next(updatedLayerList));
+        return true;
     }
 
     public boolean isDeviceAlive() {
@@ -479,13 +594,26 @@ public class Device {
     }
 
     /**
-     * Execute ADB command
+     * Execute ADB command. With the shell session enabled (-Dandroidperf.shellSession=true),
+     * the command runs on the device's long-lived shell and falls back to a new exec service
+     * whenever the session is unavailable.
      *
      * @param cmd  command
      * @param args command arguments
      * @return execution results
      */
     public String execCmd(String cmd, String... args) {
+        if (shellSession != null) {
+            StringBuilder cmdLine = new StringBuilder(cmd);
+            for (String arg : args) {
+                cmdLine.append(" ").append(Bash.quote(arg));
+            }
+            try {
+                return shellSession.exec(cmdLine.toString()).output.strip();
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Shell session unavailable, falling back to exec: %s", e.getMessage()));
+            }
+        }
         try (InputStream stream = jadbDevice.execute(cmd, args)) {
             return new String(stream.readAllBytes()).strip();
         } catch (IOException | JadbException e) {
@@ -495,13 +623,40 @@ public class Device {
         }
     }
 
+    /**
+     * Execute ADB command without blocking the calling thread. The command runs on the NIO engine
+     * when it is enabled (-Dandroidperf.nio=true), otherwise the blocking execCmd runs on a thread
+     * of its own. A command that takes longer than EXEC_TIMEOUT fails like any other.
+     *
+     * @param cmd  command
+     * @param args command arguments
+     * @return future execution results
+     */
+    public CompletableFuture<String> execCmdAsync(String cmd, String... args) {
+        CompletableFuture<String> future;
+        if (shellSession != null || !USE_NIO_ENGINE)
+            future = CompletableFuture.supplyAsync(() -> execCmd(cmd, args), asyncExecutor);
+        else
+            future = jadbDevice.executeAsync(cmd, args).thenApply(bytes -> new String(bytes).strip());
+        return future.orTimeout(EXEC_TIMEOUT, TimeUnit.MILLISECONDS)
+                .exceptionally(e -> {
+                    LOGGER.warn(String.format("Error executing adb cmd: %s", cmd + String.join(" ", args)));
+                    endPerf();
+                    return "Error executing adb cmd";
+                });
+    }
+
     /**
      * Setup port forwarding to unix domain socket
      *
      * @return true if success
      */
-    private boolean setupForward() {
+    private synchronized boolean setupForward() {
         // forward port to unix abstract socket
+        if (serverPool != null) {
+            serverPool.close();
+            serverPool = null;
+        }
         localPort = findFreePort();
         if (localPort < 0) {
             LOGGER.error("Failed to find available ports");
@@ -514,6 +669,7 @@ public class Device {
             LOGGER.error("Failed to forward local port", e);
             return false;
         }
+        serverPool = new ServerConnectionPool(localPort, SERVER_CONNECTIONS, SERVER_TIMEOUT, replyDecoder);
         return true;
     }
 
@@ -521,6 +677,11 @@ public class Device {
      * Push the server executable to device, grant permissions and start the server
      */
     public boolean startServer() {
+        serverStarted = startServerInternal();
+        return serverStarted;
+    }
+
+    private boolean startServerInternal() {
         if (!setupForward())
             return false;
         if (!isServerRunning()) {
@@ -571,15 +732,15 @@ public class Device {
             }
 
             // PING server to test aliveness
-            reply = new String(sendMSG("PING"));
+            reply = sendMSGString("PING");
             if (!reply.contains("OKAY")) {
                 LOGGER.error("Failed to PING server");
                 return false;
             }
-            replyFW = new String(sendMSG("PING_FW"));
+            replyFW = sendMSGString("PING_FW");
             start = System.currentTimeMillis();
             while (!replyFW.contains("OKAY")) {
-                replyFW = new String(sendMSG("PING_FW"));
+                replyFW = sendMSGString("PING_FW");
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException e) {
@@ -656,51 +817,52 @@ public class Device {
     }
 
     /**
-     * Send data to the server and acquire reply
+     * Send data to the server and acquire reply.
+     * Requests from different services run concurrently over the server connection pool.
      *
      * @param data data to be sent
-     * @return reply message
+     * @return reply message, must be closed by the caller
      */
-    public synchronized byte[] sendMSG(String data) {
+    public PerfReply sendMSG(String data) {
         try {
-            if (localPort < 0 && !setupForward())
-                return new byte[0];
-            Socket localSocket = new Socket(InetAddress.getLoopbackAddress(), localPort);
-            localSocket.setSoTimeout(5000);
-            DataOutputStream outputStream = new DataOutputStream(localSocket.getOutputStream());
-            data += MSG_END;
-            outputStream.write(data.getBytes());
-            outputStream.flush();
-
-            DataInputStream inputStream = new DataInputStream(localSocket.getInputStream());
-            byte[] buffer = new byte[1024];
-            ArrayList<Byte> msgEndBytes = new ArrayList<>(Arrays.asList(ArrayUtils.toObject(MSG_END.getBytes())));
-            ArrayList<Byte> replyBuffer = new ArrayList<>();
-            int len;
-            int msgEnd;
-            while (true) {
-                len = inputStream.read(buffer);
-                if (len > 0) {
-                    replyBuffer.addAll(Arrays.asList(ArrayUtils.toObject(buffer)).subList(0, len));
-                }
-                msgEnd = Collections.indexOfSubList(replyBuffer, msgEndBytes);
-                if (msgEnd != -1) {
-                    localSocket.close();
-                    Byte[] reply = replyBuffer.subList(0, msgEnd).toArray(new Byte[msgEnd]);
-                    return ArrayUtils.toPrimitive(reply);
-                }
-                if (len == -1) {
-                    localSocket.close();
-                    return new byte[0];
-                }
+            ServerConnectionPool pool = serverPool;
+            if (pool == null) {
+                if (!setupForward())
+                    return PerfReply.EMPTY;
+                pool = serverPool;
             }
+            return pool.request((data + MSG_END).getBytes());
+        } catch (TimeoutException e) {
+            LOGGER.warn(String.format("Server request '%s' timed out: %s", data, e.getMessage()));
+            return PerfReply.EMPTY;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return PerfReply.EMPTY;
         } catch (IOException e) {
             LOGGER.error("Failed to send data to server, restarting...", e);
             if (!isDeviceAlive())
                 endPerf();
-            else
-                restartServer();
-            return new byte[0];
+            else if (serverRestartLock.tryLock()) {
+                // other services failing at the same time leave the restart to the first one
+                try {
+                    restartServer();
+                } finally {
+                    serverRestartLock.unlock();
+                }
+            }
+            return PerfReply.EMPTY;
+        }
+    }
+
+    /**
+     * Send data to the server and decode the reply as text
+     *
+     * @param data data to be sent
+     * @return reply message
+     */
+    public String sendMSGString(String data) {
+        try (PerfReply reply = sendMSG(data)) {
+            return reply.toString();
         }
     }
 
@@ -732,12 +894,18 @@ public class Device {
         return targetPackageUid;
     }
 
-    public ArrayList<Layer> getLayers() {
-        return layers;
+    /**
+     * @return the current layers of the target package, see {@link #getLayerSnapshot()}
+     */
+    public List<Layer> getLayers() {
+        return layerSnapshot.get().getLayers();
     }
 
-    public AppController getController() {
-        return controller;
+    /**
+     * @return the latest snapshot of the layers, without locking
+     */
+    public LayerSnapshot getLayerSnapshot() {
+        return layerSnapshot.get();
     }
 
     public int getSdkVersion() {
@@ -792,7 +960,7 @@ public class Device {
         return cpuFrequencies;
     }
 
-    public ObservableList<String> getPackageList() {
+    public List<String> getPackageList() {
         return packageList;
     }
 
@@ -0,0 +1,27 @@
+package com.android.androidperf;
+
+/**
+ * Notified of the changes of a {@link Device}. Called on the thread making the change,
+ * which is usually not the UI thread.
+ */
+public interface DeviceListener {
+    /**
+     * Profiling has been started or ended
+     */
+    default void onPerfStateChanged(Device device) {
+    }
+
+    /**
+     * The package list has been reloaded
+     */
+    default void onPackageListChanged(Device device) {
+    }
+
+    /**
+     * Another package has come to the foreground, it is now at the front of the package list
+     *
+     * @param packageName the focused package
+     */
+    default void onFocusedPackageChanged(Device device, String packageName) {
+    }
+}
@@ -1,21 +1,19 @@
 package com.android.androidperf;
 
-import javafx.beans.property.SimpleStringProperty;
-
 public class DeviceProp {
-    private final SimpleStringProperty propName;
-    private final SimpleStringProperty propVal;
+    private final String propName;
+    private final String propVal;
 
     DeviceProp(String name, String val) {
-        propName = new SimpleStringProperty(name);
-        propVal = new SimpleStringProperty(val);
+        propName = name;
+        propVal = val;
     }
 
-    public SimpleStringProperty getPropName() {
+    public String getPropName() {
         return propName;
     }
 
-    public SimpleStringProperty getPropVal() {
+    public String getPropVal() {
         return propVal;
     }
 }
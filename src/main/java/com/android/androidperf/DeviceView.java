@@ -0,0 +1,181 @@
+package com.android.androidperf;
+
+import javafx.collections.FXCollections;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.Label;
+import javafx.scene.chart.XYChart;
+import javafx.scene.control.Tab;
+import javafx.scene.layout.*;
+
+import javafx.util.StringConverter;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The chart set of one device, shown in its own tab, so that several devices can be
+ * profiled and watched at the same time. Receives the samples of the device, or of a
+ * recorded session played back by {@link SessionReplayer}.
+ */
+public class DeviceView implements SampleSink {
+    private static final int CHECKER_COLUMNS = 3;
+    private static final int CHECKER_ROWS = 6;
+    private static final Long[] SAMPLING_PERIODS = {50L, 100L, 200L, 500L, 1000L, 2000L, 5000L, 10000L};
+
+    private final Device device;
+    private final Tab tab;
+    private final VBox content = new VBox();
+    private final BaseLineChart lineChartFPS = new BaseLineChart();
+    private final BaseLineChart lineChartCPU = new BaseLineChart();
+    private final CheckableLineChart lineChartNetwork = new CheckableLineChart();
+    // time of every frame, too many points for the node based charts
+    private final CanvasLineChart lineChartFrame = new CanvasLineChart();
+    private final BaseLineChart lineChartJank = new BaseLineChart();
+    private final GridPane checkerTable = new GridPane();
+    private final HashMap<String, PerfChart> lineChartMap = new HashMap<>();
+
+    DeviceView(Device device) {
+        this(device, device.getDeviceName(), device.getDeviceADBID());
+
+        HBox periods = new HBox(8);
+        periods.getChildren().add(new Label("Sampling period"));
+        for (String service : new String[]{"FPS", "CPU", "Network"}) {
+            periods.getChildren().addAll(new Label(service), createPeriodBox(service));
+        }
+        addToolbar(periods);
+        device.addSampleSink(this);
+    }
+
+    /**
+     * A view without device, e.g. for a replayed session
+     *
+     * @param title title of the tab
+     * @param id    unique id, kept as the user data of the tab
+     */
+    DeviceView(String title, String id) {
+        this(null, title, id);
+        tab.setClosable(true);
+    }
+
+    private DeviceView(Device device, String title, String id) {
+        this.device = device;
+
+        content.getChildren().addAll(wrapChart(lineChartFPS), wrapChart(lineChartFrame), wrapChart(lineChartJank), wrapChart(lineChartCPU), wrapChart(lineChartNetwork));
+        tab = new Tab(title, content);
+        tab.setClosable(false);
+        tab.setUserData(id);
+
+        for (int i = 0; i < CHECKER_COLUMNS; i++) {
+            ColumnConstraints column = new ColumnConstraints(10, 100, Double.MAX_VALUE);
+            column.setHgrow(Priority.SOMETIMES);
+            checkerTable.getColumnConstraints().add(column);
+        }
+        for (int i = 0; i < CHECKER_ROWS; i++) {
+            RowConstraints row = new RowConstraints(10, 30, Double.MAX_VALUE);
+            row.setVgrow(Priority.SOMETIMES);
+            checkerTable.getRowConstraints().add(row);
+        }
+        checkerTable.setPrefWidth(333);
+
+        initLineCharts();
+    }
+
+    /**
+     * Show a row of controls above the charts
+     *
+     * @param toolbar the controls
+     */
+    void addToolbar(HBox toolbar) {
+        toolbar.setSpacing(8);
+        toolbar.setAlignment(Pos.CENTER_LEFT);
+        toolbar.setPadding(new Insets(6, 10, 0, 10));
+        content.getChildren().add(0, toolbar);
+    }
+
+    @Override
+    public void onSample(String serviceName, double time, Map<String, Double> values) {
+        PerfChart chart = lineChartMap.get(serviceName);
+        if (chart == null)
+            return;
+        UiUpdateQueue.offer(() -> {
+            LinkedHashMap<String, XYChart.Data<Number, Number>> points = new LinkedHashMap<>();
+            values.forEach((name, value) -> points.put(name, new XYChart.Data<>(time, value)));
+            chart.addDataToChart(points);
+        });
+    }
+
+    @Override
+    public void onSeries(String serviceName, String series, double[] times, double[] values) {
+        if ("FPS".equals(serviceName) && "frame".equals(series))
+            UiUpdateQueue.offer(() -> lineChartFrame.addSeriesData("Frame", times, values));
+    }
+
+    private ComboBox<Long> createPeriodBox(String serviceName) {
+        ComboBox<Long> box = new ComboBox<>(FXCollections.observableArrayList(SAMPLING_PERIODS));
+        box.setConverter(new StringConverter<>() {
+            @Override
+            public String toString(Long period) {
+                if (period == null)
+                    return "";
+                return period < 1000 ? period + " ms" : period / 1000 + " s";
+            }
+
+            @Override
+            public Long fromString(String s) {
+                return null;
+            }
+        });
+        box.setValue(device.getSamplingPeriod(serviceName));
+        box.setOnAction(e -> {
+            if (box.getValue() != null)
+                device.setSamplingPeriod(serviceName, box.getValue());
+        });
+        return box;
+    }
+
+    private AnchorPane wrapChart(Region chart) {
+        chart.setPrefHeight(230);
+        chart.getStylesheets().add(Objects.requireNonNull(DeviceView.class.getResource("line-chart.css")).toExternalForm());
+        AnchorPane pane = new AnchorPane(chart);
+        pane.setMaxHeight(Double.MAX_VALUE);
+        pane.setMaxWidth(Double.MAX_VALUE);
+        AnchorPane.setLeftAnchor(chart, 10.0);
+        AnchorPane.setRightAnchor(chart, 10.0);
+        return pane;
+    }
+
+    /**
+     * Reset all charts of the device
+     */
+    void initLineCharts() {
+        lineChartFPS.initLineChart("FPS", new String[]{"FPS", "1% Low", "0.1% Low"}, "FPS");
+        lineChartMap.put("FPS", lineChartFPS);
+        lineChartFrame.initLineChart("Frame Time", new String[]{"Frame"}, "ms");
+        lineChartMap.put("Frame", lineChartFrame);
+        lineChartJank.initLineChart("Jank", new String[]{"Jank", "Big Jank", "Stutter"}, "frames / stutter %");
+        lineChartMap.put(FPSPerfService.JANK_SERVICE, lineChartJank);
+        lineChartCPU.initLineChart("CPU", new String[]{"App", "Total"}, "%");
+        lineChartMap.put("CPU", lineChartCPU);
+        lineChartNetwork.initLineChart("Network", new String[]{}, "KB/s", checkerTable);
+        lineChartMap.put("Network", lineChartNetwork);
+    }
+
+    /**
+     * @return the device, null for a replayed session
+     */
+    Device getDevice() {
+        return device;
+    }
+
+    Tab getTab() {
+        return tab;
+    }
+
+    GridPane getCheckerTable() {
+        return checkerTable;
+    }
+}
@@ -0,0 +1,201 @@
+package com.android.androidperf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * All points of a chart series, with a min/max pyramid to draw any range of them with
+ * about one point per horizontal pixel.
+ *
+ * <p>Level k of the pyramid holds, for every bucket of 2^(k+1) consecutive points, the
+ * points with the minimum and the maximum value; it is extended as points are appended.
+ * A range with a few more points than pixels is reduced with Largest-Triangle-Three-Buckets,
+ * larger ranges with the min and max points of the coarsest fitting level, so spikes are
+ * always drawn and nothing is averaged.</p>
+ */
+final class DownsampledSeries {
+    // ranges with up to this many points per output point are reduced with LTTB
+    private static final int LTTB_MAX_RATIO = 4;
+
+    /**
+     * Receives the points to draw, in order
+     */
+    interface PointConsumer {
+        void accept(double x, double y);
+    }
+
+    private static final class Level {
+        int[] minIndex = new int[16];
+        int[] maxIndex = new int[16];
+        int size = 0;
+
+        void add(int min, int max) {
+            if (size == minIndex.length) {
+                minIndex = Arrays.copyOf(minIndex, size * 2);
+                maxIndex = Arrays.copyOf(maxIndex, size * 2);
+            }
+            minIndex[size] = min;
+            maxIndex[size] = max;
+            size++;
+        }
+    }
+
+    private double[] xs = new double[256];
+    private double[] ys = new double[256];
+    private int size = 0;
+    private final ArrayList<Level> levels = new ArrayList<>();
+
+    /**
+     * Append a point, x values are expected in ascending order
+     */
+    void add(double x, double y) {
+        if (size == xs.length) {
+            xs = Arrays.copyOf(xs, size * 2);
+            ys = Arrays.copyOf(ys, size * 2);
+        }
+        xs[size] = x;
+        ys[size] = y;
+        size++;
+
+        // complete the buckets that end with this point, from the finest level up
+        int min = size - 2, max = size - 2;
+        int count = size;
+        for (int k = 0; count % 2 == 0; k++) {
+            if (k == 0) {
+                min = ys[size - 2] <= ys[size - 1] ? size - 2 : size - 1;
+                max = ys[size - 2] >= ys[size - 1] ? size - 2 : size - 1;
+            } else {
+                Level below = levels.get(k - 1);
+                int a = below.size - 2, b = below.size - 1;
+                min = ys[below.minIndex[a]] <= ys[below.minIndex[b]] ? below.minIndex[a] : below.minIndex[b];
+                max = ys[below.maxIndex[a]] >= ys[below.maxIndex[b]] ? below.maxIndex[a] : below.maxIndex[b];
+            }
+            if (levels.size() == k)
+                levels.add(new Level());
+            levels.get(k).add(min, max);
+            count = levels.get(k).size;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    double getX(int index) {
+        return xs[index];
+    }
+
+    double getY(int index) {
+        return ys[index];
+    }
+
+    /**
+     * @return index of the first point with x &gt;= the value
+     */
+    int lowerBound(double x) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (xs[mid] < x)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Produce the points to draw for an x range, including the nearest point outside on each
+     * side so that the line reaches the edges
+     *
+     * @param from      start of the range
+     * @param to        end of the range
+     * @param maxPoints about the number of points to produce, e.g. the width in pixels
+     * @param consumer  receiver of the points
+     */
+    void render(double from, double to, int maxPoints, PointConsumer consumer) {
+        int start = Math.max(0, lowerBound(from) - 1);
+        int end = Math.min(size, lowerBound(Math.nextUp(to)) + 1);
+        int count = end - start;
+        maxPoints = Math.max(maxPoints, 3);
+        if (count <= maxPoints) {
+            for (int i = start; i < end; i++)
+                consumer.accept(xs[i], ys[i]);
+        } else if (count <= maxPoints * LTTB_MAX_RATIO) {
+            lttb(start, end, maxPoints, consumer);
+        } else {
+            renderMinMax(start, end, maxPoints, consumer);
+        }
+    }
+
+    private void renderMinMax(int start, int end, int maxPoints, PointConsumer consumer) {
+        // coarsest level needed to get at most maxPoints / 2 buckets, each giving two points
+        if (levels.isEmpty()) {
+            for (int i = start; i < end; i++)
+                consumer.accept(xs[i], ys[i]);
+            return;
+        }
+        int k = 0;
+        while (k < levels.size() - 1 && (end - start) >> (k + 1) > maxPoints / 2)
+            k++;
+        int position = start;
+        while (position < end) {
+            // use the coarsest level not exceeding k whose bucket starts at the position and is complete
+            int level = Math.min(k, Integer.numberOfTrailingZeros(position | Integer.MIN_VALUE) - 1);
+            while (level >= 0 && (position >> (level + 1) >= levels.get(level).size || position + (2 << level) > end))
+                level--;
+            if (level < 0) {
+                consumer.accept(xs[position], ys[position]);
+                position++;
+                continue;
+            }
+            int bucket = position >> (level + 1);
+            int min = levels.get(level).minIndex[bucket];
+            int max = levels.get(level).maxIndex[bucket];
+            int first = Math.min(min, max), second = Math.max(min, max);
+            consumer.accept(xs[first], ys[first]);
+            if (second != first)
+                consumer.accept(xs[second], ys[second]);
+            position += 2 << level;
+        }
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets over the points [start, end)
+     */
+    private void lttb(int start, int end, int threshold, PointConsumer consumer) {
+        int count = end - start;
+        double every = (double) (count - 2) / (threshold - 2);
+        int a = start;
+        consumer.accept(xs[a], ys[a]);
+        for (int i = 0; i < threshold - 2; i++) {
+            // average of the next bucket
+            int nextStart = start + (int) Math.floor((i + 1) * every) + 1;
+            int nextEnd = Math.min(start + (int) Math.floor((i + 2) * every) + 1, end);
+            double avgX = 0, avgY = 0;
+            int nextCount = Math.max(nextEnd - nextStart, 1);
+            for (int j = nextStart; j < nextStart + nextCount && j < end; j++) {
+                avgX += xs[j];
+                avgY += ys[j];
+            }
+            avgX /= nextCount;
+            avgY /= nextCount;
+
+            // point of the current bucket forming the largest triangle
+            int bucketStart = start + (int) Math.floor(i * every) + 1;
+            int bucketEnd = start + (int) Math.floor((i + 1) * every) + 1;
+            double maxArea = -1;
+            int chosen = bucketStart;
+            for (int j = bucketStart; j < bucketEnd; j++) {
+                double area = Math.abs((xs[a] - avgX) * (ys[j] - ys[a]) - (xs[a] - xs[j]) * (avgY - ys[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = j;
+                }
+            }
+            consumer.accept(xs[chosen], ys[chosen]);
+            a = chosen;
+        }
+        consumer.accept(xs[end - 1], ys[end - 1]);
+    }
+}
@@ -1,22 +1,53 @@
 package com.android.androidperf;
 
-import javafx.application.Platform;
-import javafx.scene.chart.XYChart;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.ArrayList;
-import java.util.Map;
-import java.util.concurrent.Future;
+import se.vidstige.jadb.managers.Bash;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 public class FPSPerfService extends BasePerfService {
     private static final Logger LOGGER = LogManager.getLogger(FPSPerfService.class);
+    // printed after the output of every layer in a batched latency command
+    private static final String LATENCY_SEPARATOR = "PERF_LATENCY_END";
+    private static final byte[] LATENCY_SEPARATOR_BYTES = LATENCY_SEPARATOR.getBytes(StandardCharsets.US_ASCII);
+    // an inactive layer is probed again after this delay in milliseconds, doubled up to the maximum
+    private static final long PROBE_BACKOFF_MIN = 1000;
+    private static final long PROBE_BACKOFF_MAX = 8000;
+    // the jank counters of the session so far, taken with every sample
+    static final String JANK_SERVICE = "Jank";
+    // the figures of FrameStats#summary, taken once at the end of the session
+    static final String SUMMARY_SERVICE = "FPS Summary";
+
+    /**
+     * What the previous probes found out about a candidate layer
+     */
+    private static final class LayerState {
+        final LatencyData latency = new LatencyData();
+        boolean active = false;
+        long backoff = 0;
+        long nextProbeNanos = 0;
+    }
+
     private long lastFrameTimestamp = 0;
+    private final FrameStats frameStats = new FrameStats();
+    private boolean summaryPending = false;
+    // parse buffers of the target layer and of the candidates probed when looking for it
+    private final LatencyData targetLatency = new LatencyData();
+    // candidate layers by Layer#toString, only touched by the update task
+    private HashMap<String, LayerState> layerStates = new HashMap<>();
+    // version of the layer snapshot the target layer was selected from
+    private long layerVersion = -1;
+    // delay from the start of the session to the first valid FPS sample in milliseconds, -1 until then
+    private volatile long firstFpsDelay = -1;
     Layer targetLayer = null;
     boolean targetShouldChange = true;
 
-    Future<?> updateLayerTask = null;
+    SamplingScheduler.Task updateLayerTask = null;
 
     @Override
     public String getServiceName() {
@@ -24,104 +55,125 @@ public class FPSPerfService extends BasePerfService {
     }
 
     void clearLatencyData() {
-        var layers = new ArrayList<>(device.getLayers());
-        layers.forEach(layer -> device.execCmd(String.format("dumpsys SurfaceFlinger --latency-clear '%s'", layer.layerName)));
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        device.getLayerSnapshot().getLayers().forEach(layer -> names.add(layer.layerName));
+        if (names.isEmpty())
+            return;
+        StringBuilder cmd = new StringBuilder();
+        for (String name : names) {
+            cmd.append("dumpsys SurfaceFlinger --latency-clear ").append(Bash.quote(name)).append("; ");
+        }
+        device.execCmd(cmd.toString());
     }
 
-    ArrayList<Long> acquireLatencyData(Layer layer) {
-        if (layer == null)
-            return new ArrayList<>();
-        String latencyData;
-
-        latencyData = new String(device.sendMSG(String.format("latency %s", layer.layerName)));
-        if (latencyData.isEmpty()) {
-            LOGGER.error("server is down");
-            latencyData = device.execCmd(String.format("dumpsys SurfaceFlinger --latency '%s'", layer.layerName));
+    /**
+     * Fetch the latency data of several layers with a single shell command
+     *
+     * @param layers the layers
+     * @return the output of every layer name, without surrounding whitespace
+     */
+    private HashMap<String, ByteBuffer> acquireLatencyBatch(List<Layer> layers) {
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        layers.forEach(layer -> names.add(layer.layerName));
+        StringBuilder cmd = new StringBuilder();
+        for (String name : names) {
+            cmd.append("dumpsys SurfaceFlinger --latency ").append(Bash.quote(name))
+                    .append("; echo ").append(LATENCY_SEPARATOR).append("; ");
         }
+        byte[] output = device.execCmd(cmd.toString()).getBytes(StandardCharsets.UTF_8);
 
-        if (latencyData.isEmpty())
-            return new ArrayList<>();
-
-        // Data look like [desiredPresentTime] [actualPresentTime] [frameReadyTime]
-        // All timestamps are in nanoseconds. We use actualPresentTime to calculate frame time
-        latencyData = latencyData.replace("\r\n", "\n");
-        long padding = 0;
-        int paddingIndex = latencyData.indexOf("PADDING");
-        if (paddingIndex >= 0) {
-            String paddingStr = latencyData.substring(paddingIndex);
-            String[] paddingInfo = paddingStr.split("\\s");
-            if (paddingInfo.length >= 2) {
-                try {
-                    padding = Long.parseLong(paddingInfo[1]);
-                } catch (NumberFormatException ignored) {}
-            }
+        HashMap<String, ByteBuffer> sections = new HashMap<>();
+        Iterator<String> nameIterator = names.iterator();
+        int start = 0;
+        for (int i = 0; i + LATENCY_SEPARATOR_BYTES.length <= output.length && nameIterator.hasNext(); i++) {
+            if (!matchesSeparator(output, i))
+                continue;
+            int from = start, to = i;
+            while (from < to && Character.isWhitespace(output[from]))
+                from++;
+            while (to > from && Character.isWhitespace(output[to - 1]))
+                to--;
+            sections.put(nameIterator.next(), ByteBuffer.wrap(output, from, to - from).slice());
+            i += LATENCY_SEPARATOR_BYTES.length - 1;
+            start = i + 1;
         }
-        String[] dataLines = latencyData.split("\n\n");
-        if (dataLines.length > 1) {
-            if (layer.id >= dataLines.length)
-                return new ArrayList<>();
-            latencyData = dataLines[layer.id];
+        return sections;
+    }
+
+    private static boolean matchesSeparator(byte[] output, int index) {
+        for (int j = 0; j < LATENCY_SEPARATOR_BYTES.length; j++) {
+            if (output[index + j] != LATENCY_SEPARATOR_BYTES[j])
+                return false;
         }
-        dataLines = latencyData.split("\n");
-        var results = new ArrayList<Long>();
+        return true;
+    }
 
-        for (int i = 1; i < dataLines.length; i++) {
-            if (dataLines[i].length() == 0)
-                break;
-            String frameData = dataLines[i];
-            String[] frameTimestamps = frameData.split("\\s");
-            try {
-                long actualPresentTime = Long.parseLong(frameTimestamps[1]);
-                if (actualPresentTime == Long.MAX_VALUE)
-                    continue;
-                results.add(actualPresentTime);
-            } catch (Exception ignored) {
+    /**
+     * Fetch the frame timestamps of a layer
+     *
+     * @param layer the layer, may be null
+     * @param into  buffers to parse the reply into
+     * @return the buffers, empty if there is no data
+     */
+    LatencyData acquireLatencyData(Layer layer, LatencyData into) {
+        into.clear();
+        if (layer == null)
+            return into;
+
+        try (PerfReply reply = device.sendMSG(String.format("latency %s", layer.layerName))) {
+            if (!reply.isEmpty()) {
+                into.parse(reply.getBytes(), layer.id);
+            } else {
+                LOGGER.error("server is down");
+                String latencyData = device.execCmd(String.format("dumpsys SurfaceFlinger --latency '%s'", layer.layerName));
+                if (!latencyData.isEmpty())
+                    into.parse(latencyData, layer.id);
             }
         }
-        if (!results.isEmpty()) {
-            long last = results.get(results.size() - 1);
-            if (last != 0)
-                results.add(padding);
-        }
-
-        return results;
+        // Data look like [desiredPresentTime] [actualPresentTime] [frameReadyTime]
+        // All timestamps are in nanoseconds. We use actualPresentTime to calculate frame time
+        if (into.getRefreshPeriod() > 0)
+            frameStats.setRefreshPeriod(into.getRefreshPeriod());
+        return into;
     }
 
     /**
-     * Check if the layer is active, i.e., if it's producing frames
+     * Check if the layer is active, i.e., if it's producing frames. The padding counts only when
+     * the reply had one, a missing padding is left out by {@link LatencyData#size()}.
      * @param frameResults the layer's frame latency data
      * @return true if it's active
      */
-    boolean isLayerActive(ArrayList<Long> frameResults) {
+    boolean isLayerActive(LatencyData frameResults) {
         // frame result is empty
         if (frameResults.isEmpty())
             return false;
-        // frame result contains only 0
-        if (frameResults.stream().noneMatch(i -> i > 0))
-            return false;
 
-        // frame result doesn't have any new data
-        int i = 0;
-        for (; i < frameResults.size(); i++) {
-            if (frameResults.get(i) > lastFrameTimestamp)
-                break;
+        // frame result contains only 0, or doesn't have any new data
+        int i = -1;
+        boolean hasTimestamp = false;
+        for (int j = 0; j < frameResults.size() && (i < 0 || !hasTimestamp); j++) {
+            long timestamp = frameResults.getTimestamp(j);
+            hasTimestamp |= timestamp > 0;
+            if (i < 0 && timestamp > lastFrameTimestamp)
+                i = j;
         }
+        if (!hasTimestamp || i < 0)
+            return false;
         double totalTime = 0;
         double frameCount = 0;
         long preceding = lastFrameTimestamp;
-        if (i < frameResults.size()) {
-            if (i != frameResults.size() - 1) {
-                for (; i < frameResults.size(); i++) {
-                    if (preceding == 0) {
-                        preceding = frameResults.get(i);
-                        continue;
-                    }
-                    totalTime += (Double.valueOf(frameResults.get(i)) - preceding) / 1e6;
-                    preceding = frameResults.get(i);
-                    frameCount++;
+        if (i != frameResults.size() - 1) {
+            for (; i < frameResults.size(); i++) {
+                long timestamp = frameResults.getTimestamp(i);
+                if (preceding == 0) {
+                    preceding = timestamp;
+                    continue;
                 }
+                totalTime += ((double) timestamp - preceding) / 1e6;
+                preceding = timestamp;
+                frameCount++;
             }
-        } else return false;
+        }
         double fps = 0.;
         if (frameCount < 5)
             return false;
@@ -130,14 +182,53 @@ public class FPSPerfService extends BasePerfService {
         return fps >= 1;
     }
 
-    void updateTargetLayer() {
-        var layers = new ArrayList<>(device.getLayers());
-        for (var layer : layers) {
+    /**
+     * Look for the layer producing frames among the visible layers. All layers due for a probe
+     * are fetched with one command; a layer found inactive is probed again after a growing delay,
+     * unless the layer list changes.
+     *
+     * @param snapshot the layers to choose from
+     * @param all      true to probe all layers, e.g. when the layers have changed
+     */
+    void updateTargetLayer(LayerSnapshot snapshot, boolean all) {
+        long now = System.nanoTime();
+        HashMap<String, LayerState> states = new HashMap<>();
+        ArrayList<Layer> candidates = new ArrayList<>();
+        for (var layer : snapshot.getLayers()) {
             LOGGER.debug(layer);
             if (!layer.isVisible)
                 continue;
-            var frameResults = acquireLatencyData(layer);
-            if (isLayerActive(frameResults)) {
+            LayerState state = layerStates.get(layer.toString());
+            if (state == null)
+                state = new LayerState();
+            states.put(layer.toString(), state);
+            if (all || state.active || now >= state.nextProbeNanos)
+                candidates.add(layer);
+        }
+        // forget the layers that are gone
+        layerStates = states;
+        if (candidates.isEmpty())
+            return;
+
+        HashMap<String, ByteBuffer> sections = acquireLatencyBatch(candidates);
+        // dumpsys has no PADDING entry, the layers are judged by their frames alone
+        for (var layer : candidates) {
+            ByteBuffer section = sections.get(layer.layerName);
+            LayerState state = states.get(layer.toString());
+            state.latency.clear();
+            if (section != null && section.hasRemaining())
+                state.latency.parse(section, layer.id);
+            state.active = isLayerActive(state.latency);
+            if (state.active) {
+                state.backoff = 0;
+            } else {
+                state.backoff = Math.min(PROBE_BACKOFF_MAX, Math.max(PROBE_BACKOFF_MIN, state.backoff * 2));
+                state.nextProbeNanos = now + TimeUnit.MILLISECONDS.toNanos(state.backoff);
+            }
+        }
+
+        for (var layer : candidates) {
+            if (states.get(layer.toString()).active) {
                 if (layer.isSurfaceView) {
                     targetLayer = layer;
                     targetShouldChange = false;
@@ -147,83 +238,127 @@ public class FPSPerfService extends BasePerfService {
                     targetShouldChange = true;
                 }
             }
-
         }
     }
 
     private void updateLayers() {
         String packageName = device.getTargetPackage();
-        if (packageName != null && !packageName.isEmpty()) {
-            if (device.updateLayerList())
-                targetShouldChange = true;
-        }
+        // a change publishes a new snapshot, picked up by the next update
+        if (packageName != null && !packageName.isEmpty())
+            device.updateLayerList();
     }
 
     @Override
     void update() {
         // get the latency data of the target layer
-        var frameResults = acquireLatencyData(targetLayer);
+        var frameResults = acquireLatencyData(targetLayer, targetLatency);
         try {
+            LayerSnapshot snapshot = device.getLayerSnapshot();
+            // probe all layers of a new list at once
+            boolean layersChanged = snapshot.getVersion() != layerVersion;
+            layerVersion = snapshot.getVersion();
             // if there is no target layer, or the target layer is no longer active,
-            // or the target should change as hinted by others, we update the target layer
-            if (targetLayer == null || !isLayerActive(frameResults) || targetShouldChange) {
+            // or the layers have changed, or the target should change as hinted by others,
+            // we update the target layer
+            if (targetLayer == null || !isLayerActive(frameResults) || targetShouldChange || layersChanged) {
                 LOGGER.debug("Target-Old: " + targetLayer);
-                updateTargetLayer();
+                updateTargetLayer(snapshot, layersChanged);
                 LOGGER.debug("Target: " + targetLayer);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
 
+        // only real frames count, the padding is the time of the dump and not a frame
+        int count = frameResults.getFrameCount();
         int i = 0;
-        for (; i < frameResults.size(); i++) {
-            if (frameResults.get(i) > lastFrameTimestamp)
+        for (; i < count; i++) {
+            if (frameResults.getTimestamp(i) > lastFrameTimestamp)
                 break;
         }
-        ArrayList<Double> results = new ArrayList<>();
+        double[] frameTimes = new double[count - i];
+        double[] times = new double[frameTimes.length];
+        int frameCount = 0;
+        double totalTime = 0;
         long preceding = lastFrameTimestamp;
-        if (i < frameResults.size()) {
-            lastFrameTimestamp = frameResults.get(frameResults.size() - 1);
-            if (i != frameResults.size() - 1) {
-                for (; i < frameResults.size(); i++) {
-                    if (preceding == 0) {
-                        preceding = frameResults.get(i);
-                        continue;
-                    }
-                    Double frameTime = (Double.valueOf(frameResults.get(i)) - preceding) / 1e6;
-                    preceding = frameResults.get(i);
-                    results.add(frameTime);
+        if (i < count) {
+            lastFrameTimestamp = frameResults.getTimestamp(count - 1);
+            for (; i < count; i++) {
+                long timestamp = frameResults.getTimestamp(i);
+                // the first frame ever seen has no preceding frame
+                if (preceding == 0) {
+                    preceding = timestamp;
+                    continue;
                 }
+                double frameTime = ((double) timestamp - preceding) / 1e6;
+                preceding = timestamp;
+                frameTimes[frameCount] = frameTime;
+                // place every frame on the session time line, relative to the newest frame
+                times[frameCount] = Math.max(0, timer - (lastFrameTimestamp - timestamp) / 1e9);
+                frameCount++;
+                totalTime += frameTime;
+                frameStats.add(frameTime);
             }
         }
 
-        double totalTime = results.stream().mapToDouble(a -> a).sum();
         double fps = 0;
         if (totalTime != 0)
-            fps = results.size() / totalTime * 1000;
+            fps = frameCount / totalTime * 1000;
         if (fps < 1.)
             targetShouldChange = true;
-        double finalFps = fps;
-        LOGGER.debug(String.format("%d / %f = %f", results.size(), totalTime / 1000, fps));
+        else if (firstFpsDelay < 0) {
+            firstFpsDelay = Math.max(0, System.nanoTime() - device.getPerfStartNanos()) / 1000000;
+            LOGGER.info(String.format("%s: first valid FPS sample %d ms after the start", device.getDeviceADBID(), firstFpsDelay));
+        }
+
+        LOGGER.debug(String.format("%d / %f = %f", frameCount, totalTime / 1000, fps));
         LOGGER.debug("-------------------");
-        Platform.runLater(() -> chart.addDataToChart(Map.ofEntries(
-                        Map.entry("FPS", new XYChart.Data<>(timer, finalFps))
-                )
-        ));
+        emit(Map.of("FPS", fps,
+                "1% Low", frameStats.getLowFps(0.01),
+                "0.1% Low", frameStats.getLowFps(0.001)));
+        // session totals, on a scale of their own
+        device.emitSample(JANK_SERVICE, timer, Map.of(
+                "Jank", (double) frameStats.getJanks(),
+                "Big Jank", (double) frameStats.getBigJanks(),
+                "Stutter", frameStats.getStutter() * 100));
+        if (frameCount > 0)
+            emitSeries("frame", Arrays.copyOf(times, frameCount), Arrays.copyOf(frameTimes, frameCount));
         super.update();
     }
 
-    @Override
-    void end() {
-        if (updateLayerTask != null)
-            updateLayerTask.cancel(true);
-        super.end();
+    /**
+     * @return frame time statistics of the current session
+     */
+    FrameStats getFrameStats() {
+        return frameStats;
+    }
+
+    /**
+     * @return delay from the start of the session to the first valid FPS sample in milliseconds, -1 until then
+     */
+    long getTimeToFirstFps() {
+        return firstFpsDelay;
     }
 
     @Override
     void begin() {
+        frameStats.reset();
+        summaryPending = true;
+        firstFpsDelay = -1;
+        layerVersion = -1;
         clearLatencyData();
         super.begin();
-        updateLayerTask = executorService.scheduleAtFixedRate(this::updateLayers, 500, 500, TimeUnit.MILLISECONDS);
+        updateLayerTask = schedule("layers", this::updateLayers, device.getPerfStartDelay() + 500, 500);
+    }
+
+    @Override
+    void end() {
+        if (summaryPending && frameStats.getFrames() > 0) {
+            LOGGER.info(String.format("%s FPS summary: %s, first FPS after %d ms", device.getDeviceADBID(), frameStats.summary(), firstFpsDelay));
+            // recorded with the session, so the catalog indexes e.g. "FPS Summary/Stutter.max"
+            device.emitSample(SUMMARY_SERVICE, timer, frameStats.summaryValues());
+        }
+        summaryPending = false;
+        super.end();
     }
 }
@@ -0,0 +1,194 @@
+package com.android.androidperf;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streaming statistics over the frame times of a session, in fixed memory.
+ *
+ * <p>Frame times go into a histogram of {@link #BUCKET_MS} buckets up to {@link #MAX_MS},
+ * longer frames into an overflow bucket keeping their sum. The lows are the average frame
+ * rate of the slowest 1% and 0.1% of the frames. A frame is a jank when it takes more than
+ * twice the average of the three previous frames and more than two refresh periods of the
+ * display, a big jank when it takes more than three refresh periods. The stutter ratio is
+ * the share of the session time spent in janks.</p>
+ */
+final class FrameStats {
+    static final double BUCKET_MS = 0.1;
+    static final double MAX_MS = 250;
+    private static final int BUCKETS = (int) Math.round(MAX_MS / BUCKET_MS);
+    // refresh period assumed until the device reports one
+    private static final double DEFAULT_REFRESH_MS = 1000. / 60;
+
+    private final long[] histogram = new long[BUCKETS];
+    private long overflowCount = 0;
+    private double overflowSum = 0;
+    private long frames = 0;
+    private double totalMs = 0;
+    private double maxMs = 0;
+    private long janks = 0;
+    private long bigJanks = 0;
+    private double jankMs = 0;
+    private double refreshMs = DEFAULT_REFRESH_MS;
+    // the three previous frame times, as a ring
+    private final double[] previous = new double[3];
+    private int previousIndex = 0;
+    private int previousCount = 0;
+
+    /**
+     * @param refreshPeriodNanos refresh period of the display as reported by SurfaceFlinger
+     */
+    synchronized void setRefreshPeriod(long refreshPeriodNanos) {
+        if (refreshPeriodNanos > 0)
+            refreshMs = refreshPeriodNanos / 1e6;
+    }
+
+    /**
+     * @param frameMs time of a frame in milliseconds
+     */
+    synchronized void add(double frameMs) {
+        if (!(frameMs > 0))
+            return;
+        if (previousCount >= previous.length) {
+            double average = (previous[0] + previous[1] + previous[2]) / 3;
+            if (frameMs > 2 * average && frameMs > 2 * refreshMs) {
+                janks++;
+                jankMs += frameMs;
+                if (frameMs > 3 * refreshMs)
+                    bigJanks++;
+            }
+        }
+        previous[previousIndex] = frameMs;
+        previousIndex = (previousIndex + 1) % previous.length;
+        previousCount = Math.min(previousCount + 1, previous.length);
+
+        int bucket = (int) (frameMs / BUCKET_MS);
+        if (bucket < BUCKETS) {
+            histogram[bucket]++;
+        } else {
+            overflowCount++;
+            overflowSum += frameMs;
+        }
+        frames++;
+        totalMs += frameMs;
+        maxMs = Math.max(maxMs, frameMs);
+    }
+
+    synchronized void reset() {
+        Arrays.fill(histogram, 0);
+        overflowCount = 0;
+        overflowSum = 0;
+        frames = 0;
+        totalMs = 0;
+        maxMs = 0;
+        janks = 0;
+        bigJanks = 0;
+        jankMs = 0;
+        previousIndex = 0;
+        previousCount = 0;
+    }
+
+    synchronized long getFrames() {
+        return frames;
+    }
+
+    synchronized long getJanks() {
+        return janks;
+    }
+
+    synchronized long getBigJanks() {
+        return bigJanks;
+    }
+
+    /**
+     * @return share of the session time spent in janks, in [0, 1]
+     */
+    synchronized double getStutter() {
+        return totalMs == 0 ? 0 : jankMs / totalMs;
+    }
+
+    synchronized double getAverageFps() {
+        return totalMs == 0 ? 0 : frames * 1000 / totalMs;
+    }
+
+    synchronized double getRefreshPeriodMillis() {
+        return refreshMs;
+    }
+
+    /**
+     * @param fraction share of the slowest frames, e.g. 0.01 for the 1% low
+     * @return average frame rate of the slowest frames, 0 without frames
+     */
+    synchronized double getLowFps(double fraction) {
+        long count = Math.max(1, (long) Math.ceil(frames * fraction));
+        if (frames == 0)
+            return 0;
+        // walk down from the slowest frames, the overflow bucket first
+        long taken = Math.min(count, overflowCount);
+        double sum = overflowCount == 0 ? 0 : overflowSum / overflowCount * taken;
+        for (int bucket = BUCKETS - 1; bucket >= 0 && taken < count; bucket--) {
+            long n = Math.min(histogram[bucket], count - taken);
+            sum += n * (bucket + 0.5) * BUCKET_MS;
+            taken += n;
+        }
+        return sum == 0 ? 0 : taken * 1000 / sum;
+    }
+
+    /**
+     * @param upperMs end of a range of frame times
+     * @return number of frames faster than the value, at the resolution of the histogram
+     */
+    synchronized long countBelow(double upperMs) {
+        int end = (int) Math.min(BUCKETS, Math.max(0, Math.round(upperMs / BUCKET_MS)));
+        long count = 0;
+        for (int bucket = 0; bucket < end; bucket++)
+            count += histogram[bucket];
+        return count;
+    }
+
+    /**
+     * @return the number of frames taking about 1, 2, 3 and more refresh periods
+     */
+    private long[] countByRefreshPeriods() {
+        long withinOne = countBelow(refreshMs * 1.5);
+        long withinTwo = countBelow(refreshMs * 2.5);
+        long withinThree = countBelow(refreshMs * 3.5);
+        return new long[]{withinOne, withinTwo - withinOne, withinThree - withinTwo, frames - withinThree};
+    }
+
+    /**
+     * @return a one-line summary of the session
+     */
+    synchronized String summary() {
+        long[] periods = countByRefreshPeriods();
+        return String.format("%d frames, avg %.1f FPS, 1%% low %.1f FPS, 0.1%% low %.1f FPS, max %.1f ms, "
+                        + "%d janks, %d big janks, stutter %.2f%%, refresh period %.2f ms, "
+                        + "frames per refresh periods 1:%d 2:%d 3:%d more:%d",
+                frames, getAverageFps(), getLowFps(0.01), getLowFps(0.001), maxMs,
+                janks, bigJanks, getStutter() * 100, refreshMs,
+                periods[0], periods[1], periods[2], periods[3]);
+    }
+
+    /**
+     * @return the figures of {@link #summary()} by name, to be recorded with the session
+     */
+    synchronized Map<String, Double> summaryValues() {
+        long[] periods = countByRefreshPeriods();
+        LinkedHashMap<String, Double> values = new LinkedHashMap<>();
+        values.put("Frames", (double) frames);
+        values.put("FPS", getAverageFps());
+        values.put("1% Low", getLowFps(0.01));
+        values.put("0.1% Low", getLowFps(0.001));
+        values.put("Max Frame Time", maxMs);
+        values.put("Jank", (double) janks);
+        values.put("Big Jank", (double) bigJanks);
+        values.put("Stutter", getStutter() * 100);
+        values.put("Refresh Period", refreshMs);
+        values.put("1 Period", (double) periods[0]);
+        values.put("2 Periods", (double) periods[1]);
+        values.put("3 Periods", (double) periods[2]);
+        values.put("More Periods", (double) periods[3]);
+        return values;
+    }
+}
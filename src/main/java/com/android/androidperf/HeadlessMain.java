@@ -0,0 +1,251 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Command-line profiling without any UI, for CI agents and machines without a display.
+ * Runs the same perf services as the GUI and writes their samples as CSV.
+ * No JavaFX class is loaded on this path.
+ */
+public class HeadlessMain {
+    private static final Logger LOGGER = LogManager.getLogger(HeadlessMain.class);
+    private static final String USAGE = "Usage: --headless --package <name> [--serial <serial>] [--duration <seconds>]\n" +
+            "       [--rate <service>=<ms>[,<service>=<ms>...]] [--output <file>|-]\n" +
+            "  services: FPS, CPU, Network; rates within [50, 10000] ms, 1000 by default\n" +
+            "  the output defaults to perf-<serial>.csv, - writes to stdout\n" +
+            "   or: --headless --recording <file> [--series <service>/<series>[,...]] [--from <seconds>] [--to <seconds>]\n" +
+            "       [--output <file>|-]\n" +
+            "  prints the values of the series within the range as CSV, and their min/max/avg to stderr;\n" +
+            "  all series by default, the output defaults to stdout\n" +
+            "   or: --headless --catalog <directory> [--where \"<field> <op> <value>\"]...\n" +
+            "  lists the recorded sessions matching all conditions, op being one of = != < <= > >= ~ (contains),\n" +
+            "  fields: serial, model, sdk, package, start, duration, device properties, <service>/<series>.min|max|avg|count";
+
+    private String serial = null;
+    private String packageName = null;
+    private long duration = 60;
+    private final Map<String, Long> rates = new LinkedHashMap<>();
+    private String output = null;
+    private String recording = null;
+    private final List<String> series = new ArrayList<>();
+    private double from = 0;
+    private double to = Double.MAX_VALUE;
+    private String catalog = null;
+    private final List<String> conditions = new ArrayList<>();
+
+    private HeadlessMain() {
+    }
+
+    public static void main(String[] args) {
+        HeadlessMain main = new HeadlessMain();
+        try {
+            main.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        int status;
+        if (main.catalog != null)
+            status = main.listSessions();
+        else if (main.recording != null)
+            status = main.query();
+        else
+            status = main.run();
+        System.exit(status);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--headless"))
+                continue;
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value of " + arg);
+            String value = args[++i];
+            switch (arg) {
+                case "--serial":
+                    serial = value;
+                    break;
+                case "--package":
+                    packageName = value;
+                    break;
+                case "--duration":
+                    duration = parseNumber(arg, value);
+                    break;
+                case "--rate":
+                    for (String rate : value.split(",")) {
+                        String[] pair = rate.split("=", 2);
+                        if (pair.length != 2)
+                            throw new IllegalArgumentException("Invalid rate " + rate);
+                        rates.put(pair[0].strip(), parseNumber(arg, pair[1].strip()));
+                    }
+                    break;
+                case "--output":
+                    output = value;
+                    break;
+                case "--recording":
+                    recording = value;
+                    break;
+                case "--series":
+                    for (String name : value.split(","))
+                        series.add(name.strip());
+                    break;
+                case "--from":
+                    from = parseSeconds(arg, value);
+                    break;
+                case "--to":
+                    to = parseSeconds(arg, value);
+                    break;
+                case "--catalog":
+                    catalog = value;
+                    break;
+                case "--where":
+                    conditions.add(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (packageName == null && recording == null && catalog == null)
+            throw new IllegalArgumentException("No target package given");
+    }
+
+    private static long parseNumber(String option, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid value of %s: %s", option, value));
+        }
+    }
+
+    private static double parseSeconds(String option, String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid value of %s: %s", option, value));
+        }
+    }
+
+    /**
+     * Print the values of the requested series within the time range of a recording
+     */
+    private int query() {
+        long fromMicros = (long) (from * 1e6);
+        long toMicros = to >= Long.MAX_VALUE / 1e6 ? Long.MAX_VALUE : (long) (to * 1e6);
+        try (RecordingReader reader = new RecordingReader(Path.of(recording))) {
+            List<String> names = series.isEmpty() ? new ArrayList<>(reader.listSeries()) : series;
+            OutputStream stream = output == null || output.equals("-") ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(output);
+            try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)))) {
+                writer.println("time,service,series,value");
+                for (String name : names) {
+                    int separator = name.indexOf('/');
+                    if (separator < 0)
+                        throw new IllegalArgumentException("Invalid series " + name);
+                    String service = name.substring(0, separator);
+                    String seriesName = name.substring(separator + 1);
+                    RecordingReader.Range range = reader.query(service, seriesName, fromMicros, toMicros);
+                    for (int i = 0; i < range.times.length; i++) {
+                        writer.printf(Locale.ROOT, "%.6f,%s,%s,%.3f%n", range.times[i] / 1e6, service, seriesName, range.values[i]);
+                    }
+                    System.err.printf("%s: %s%n", name, reader.aggregate(service, seriesName, fromMicros, toMicros));
+                }
+            }
+            return 0;
+        } catch (IOException e) {
+            LOGGER.error(String.format("Cannot query recording %s", recording), e);
+            return 1;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+    }
+
+    /**
+     * Print the sessions of the catalog that match the conditions
+     */
+    private int listSessions() {
+        SessionCatalog sessionCatalog = SessionCatalog.open(Path.of(catalog));
+        sessionCatalog.indexNewRecordings();
+        List<Map<String, String>> sessions;
+        long start = System.nanoTime();
+        try {
+            sessions = sessionCatalog.find(conditions);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+        LinkedHashSet<String> columns = new LinkedHashSet<>(List.of("path", "serial", "model", "sdk", "package", "start", "duration"));
+        for (String condition : conditions) {
+            columns.add(condition.split("\\s*(!=|<=|>=|=|<|>|~)", 2)[0].strip());
+        }
+        System.out.println(String.join(",", columns));
+        for (Map<String, String> session : sessions) {
+            StringJoiner line = new StringJoiner(",");
+            columns.forEach(column -> line.add(session.getOrDefault(column, "")));
+            System.out.println(line);
+        }
+        System.err.printf("%d of %d sessions matched in %.1f ms%n", sessions.size(), sessionCatalog.size(), (System.nanoTime() - start) / 1e6);
+        return 0;
+    }
+
+    private JadbDevice findDevice() throws IOException, JadbException {
+        List<JadbDevice> devices = Device.connection.getDevices();
+        for (JadbDevice device : devices) {
+            if (serial == null || device.getSerial().equals(serial))
+                return device;
+        }
+        return null;
+    }
+
+    private int run() {
+        Device device = null;
+        CsvSampleSink sink = null;
+        try {
+            JadbDevice adbDevice = findDevice();
+            if (adbDevice == null) {
+                System.err.println(serial == null ? "No device connected" : "Device " + serial + " not found");
+                return 1;
+            }
+            device = new Device(adbDevice, new DeviceListener() {});
+            if (!device.startServer()) {
+                System.err.println("Cannot start AndroidPerf server on " + device.getDeviceADBID());
+                return 1;
+            }
+            device.setTargetPackage(packageName);
+            rates.forEach(device::setSamplingPeriod);
+
+            String path = output != null ? output : String.format("perf-%s.csv", device.getDeviceADBID());
+            OutputStream stream = path.equals("-") ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(path);
+            sink = new CsvSampleSink(new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))));
+            device.addSampleSink(sink);
+
+            LOGGER.info(String.format("Profiling %s on %s for %d s", packageName, device.getDeviceADBID(), duration));
+            device.startPerf();
+            Thread.sleep(duration * 1000);
+            device.endPerf();
+            return 0;
+        } catch (IOException | JadbException e) {
+            LOGGER.error("Headless profiling failed", e);
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } finally {
+            if (device != null)
+                device.shutdown();
+            if (sink != null)
+                sink.close();
+            SamplingScheduler.getInstance().shutdown();
+            Device.connection.close();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.android.androidperf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The frame timestamps of one layer, parsed from the output of "dumpsys SurfaceFlinger --latency"
+ * or the latency message of AndroidPerfServer, into reusable buffers.
+ *
+ * <p>The output starts with the refresh period, followed by one line per frame holding
+ * [desiredPresentTime] [actualPresentTime] [frameReadyTime] in nanoseconds. The server may
+ * reply the blocks of several layers separated by an empty line, and a "PADDING" entry with
+ * the timestamp appended after the last frame. The bytes are scanned without building strings,
+ * with the same results as splitting the text with {@link String#split(String)}: CRLF counts
+ * as LF, a frame line ends the block when empty, and lines whose present time is missing,
+ * not a number or pending (Long.MAX_VALUE) are skipped.</p>
+ */
+final class LatencyData {
+    private static final byte[] PADDING = "PADDING".getBytes(StandardCharsets.US_ASCII);
+
+    private long[] desired = new long[128];
+    private long[] actual = new long[128];
+    private long[] ready = new long[128];
+    private int rows = 0;
+    private boolean hasPadding = false;
+    private long padding = 0;
+    private long refreshPeriod = 0;
+    // result of the last parseLong
+    private long parsed = 0;
+    // the reply with CRLF turned into LF
+    private byte[] text = new byte[8 * 1024];
+    private int textLength = 0;
+    // start of the blocks separated by "\n\n"
+    private int[] blockStarts = new int[8];
+
+    /**
+     * Parse a reply
+     *
+     * @param bytes   the reply, from its position to its limit
+     * @param layerId index of the block of the layer, when the reply holds several
+     * @return this
+     */
+    LatencyData parse(ByteBuffer bytes, int layerId) {
+        clear();
+        normalize(bytes);
+        if (textLength == 0)
+            return this;
+        padding = parsePadding();
+
+        int start = 0, end = textLength;
+        int blocks = splitBlocks();
+        if (blocks > 1) {
+            if (layerId >= blocks)
+                return this;
+            start = blockStarts[layerId];
+            // a block ends before the "\n\n" starting the next one, the last one at the end
+            end = layerId + 1 < blocks ? blockStarts[layerId + 1] - 2 : textLength;
+        }
+        parseBlock(start, end);
+        return this;
+    }
+
+    /**
+     * Parse a reply given as text, e.g. the output of a shell command
+     */
+    LatencyData parse(String reply, int layerId) {
+        return parse(ByteBuffer.wrap(reply.getBytes(StandardCharsets.UTF_8)), layerId);
+    }
+
+    void clear() {
+        rows = 0;
+        hasPadding = false;
+        padding = 0;
+        refreshPeriod = 0;
+        textLength = 0;
+    }
+
+    private void normalize(ByteBuffer bytes) {
+        int from = bytes.position(), to = bytes.limit();
+        if (text.length < to - from)
+            text = new byte[Math.max(to - from, text.length * 2)];
+        bytes.duplicate().get(text, 0, to - from);
+        // in place, the text only gets shorter
+        int length = 0;
+        for (int i = 0; i < to - from; i++) {
+            byte b = text[i];
+            if (b == '\r' && i + 1 < to - from && text[i + 1] == '\n') {
+                b = '\n';
+                i++;
+            }
+            text[length++] = b;
+        }
+        textLength = length;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        // \s of java.util.regex
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    /**
+     * @return the number after the first "PADDING", 0 if there is none
+     */
+    private long parsePadding() {
+        int index = indexOf(PADDING);
+        if (index < 0)
+            return 0;
+        // the second whitespace separated token from there on
+        int i = index;
+        while (i < textLength && !isWhitespace(text[i]))
+            i++;
+        if (i >= textLength)
+            return 0;
+        int tokenStart = ++i;
+        while (i < textLength && !isWhitespace(text[i]))
+            i++;
+        return parseLong(tokenStart, i) ? parsed : 0;
+    }
+
+    private int indexOf(byte[] needle) {
+        byte first = needle[0];
+        for (int i = 0, last = textLength - needle.length; i <= last; i++) {
+            if (text[i] != first)
+                continue;
+            int j = 1;
+            while (j < needle.length && text[i + j] == needle[j])
+                j++;
+            if (j == needle.length)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the blocks separated by "\n\n" like String.split, which drops trailing empty blocks
+     *
+     * @return the number of blocks
+     */
+    private int splitBlocks() {
+        int count = 1;
+        blockStarts[0] = 0;
+        // the number of blocks counted so far that are not followed only by empty blocks
+        int nonEmpty = 0;
+        int blockStart = 0;
+        int i = 0;
+        while (i + 1 < textLength) {
+            if (text[i] == '\n' && text[i + 1] == '\n') {
+                if (i > blockStart)
+                    nonEmpty = count;
+                if (count == blockStarts.length)
+                    blockStarts = Arrays.copyOf(blockStarts, count * 2);
+                blockStarts[count++] = i + 2;
+                blockStart = i + 2;
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+        if (count == 1)
+            return 1;
+        if (textLength > blockStart)
+            nonEmpty = count;
+        return nonEmpty;
+    }
+
+    private void parseBlock(int start, int end) {
+        // the first line holds the refresh period
+        int lineEnd = indexOfNewline(start, end);
+        int from = start, to = lineEnd;
+        while (from < to && (text[from] & 0xff) <= ' ')
+            from++;
+        while (to > from && (text[to - 1] & 0xff) <= ' ')
+            to--;
+        if (parseLong(from, to))
+            refreshPeriod = parsed;
+
+        int lineStart = lineEnd + 1;
+        while (lineStart < end) {
+            lineEnd = indexOfNewline(lineStart, end);
+            if (lineEnd == lineStart)
+                break;
+            parseFrame(lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+        }
+        // only the server sends a PADDING entry, the padding of a dumpsys reply is missing
+        hasPadding = rows > 0 && actual[rows - 1] != 0 && padding > 0;
+    }
+
+    private int indexOfNewline(int from, int end) {
+        int i = from;
+        while (i < end && text[i] != '\n')
+            i++;
+        return i;
+    }
+
+    private void parseFrame(int start, int end) {
+        // the whitespace separated tokens, empty ones included
+        int tokenEnd0 = start;
+        while (tokenEnd0 < end && !isWhitespace(text[tokenEnd0]))
+            tokenEnd0++;
+        if (tokenEnd0 >= end)
+            return;
+        int tokenStart1 = tokenEnd0 + 1;
+        int tokenEnd1 = tokenStart1;
+        while (tokenEnd1 < end && !isWhitespace(text[tokenEnd1]))
+            tokenEnd1++;
+        // an empty second token fails like an invalid one
+        if (!parseLong(tokenStart1, tokenEnd1) || parsed == Long.MAX_VALUE)
+            return;
+        long present = parsed;
+        long frameReady = 0;
+        if (tokenEnd1 < end) {
+            int tokenStart2 = tokenEnd1 + 1;
+            int tokenEnd2 = tokenStart2;
+            while (tokenEnd2 < end && !isWhitespace(text[tokenEnd2]))
+                tokenEnd2++;
+            if (parseLong(tokenStart2, tokenEnd2))
+                frameReady = parsed;
+        }
+        if (rows == actual.length) {
+            desired = Arrays.copyOf(desired, rows * 2);
+            actual = Arrays.copyOf(actual, rows * 2);
+            ready = Arrays.copyOf(ready, rows * 2);
+        }
+        desired[rows] = parseLong(start, tokenEnd0) ? parsed : 0;
+        actual[rows] = present;
+        ready[rows] = frameReady;
+        rows++;
+    }
+
+    /**
+     * Parse a decimal number like {@link Long#parseLong(String)} into {@link #parsed}
+     *
+     * @return false if the text is not a valid number
+     */
+    private boolean parseLong(int from, int to) {
+        if (from >= to)
+            return false;
+        boolean negative = false;
+        int i = from;
+        if (text[i] == '-' || text[i] == '+') {
+            negative = text[i] == '-';
+            i++;
+            if (i == to)
+                return false;
+        }
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyMin = limit / 10;
+        long result = 0;
+        for (; i < to; i++) {
+            int b = text[i] & 0xff;
+            if (b >= 0x80)
+                return parseNonAscii(from, to);
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || result < multiplyMin)
+                return false;
+            result *= 10;
+            if (result < limit + digit)
+                return false;
+            result -= digit;
+        }
+        parsed = negative ? result : -result;
+        return true;
+    }
+
+    private boolean parseNonAscii(int from, int to) {
+        // Long.parseLong also accepts the digits of other scripts, rare enough to decode
+        try {
+            parsed = Long.parseLong(new String(text, from, to - from, StandardCharsets.UTF_8));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return number of timestamps: the present time of every frame, then the padding if the reply had one
+     */
+    int size() {
+        return hasPadding ? rows + 1 : rows;
+    }
+
+    /**
+     * @param index index within {@link #size()}
+     * @return the present time of a frame, or the padding after the last frame
+     */
+    long getTimestamp(int index) {
+        return index < rows ? actual[index] : padding;
+    }
+
+    /**
+     * @return number of frames
+     */
+    int getFrameCount() {
+        return rows;
+    }
+
+    long getDesiredPresentTime(int frame) {
+        return desired[frame];
+    }
+
+    long getActualPresentTime(int frame) {
+        return actual[frame];
+    }
+
+    long getFrameReadyTime(int frame) {
+        return ready[frame];
+    }
+
+    /**
+     * @return refresh period of the display in nanoseconds, 0 if unknown
+     */
+    long getRefreshPeriod() {
+        return refreshPeriod;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -1,21 +1,22 @@
 package com.android.androidperf;
 
-public class Layer {
-    String layerName;
-    String packageName;
-    boolean isVisible;
-    boolean isSurfaceView = false;
-    int id;
-    int w, h, x, y, z;
+/**
+ * A layer of the target package, immutable so that snapshots of the layers can be shared between threads
+ */
+public final class Layer {
+    final String layerName;
+    final String packageName;
+    final boolean isVisible;
+    final boolean isSurfaceView;
+    final int id;
+    final int w, h, x, y, z;
 
     Layer(String name, String packageName, boolean buffer, int id, int w, int h, int x, int y, int z) {
         layerName = name;
         isVisible = buffer;
         this.packageName = packageName;
         this.id = id;
-        if (layerName.startsWith("SurfaceView")) {
-            isSurfaceView = true;
-        }
+        isSurfaceView = layerName.startsWith("SurfaceView");
         this.w = w;
         this.h = h;
         this.x = x;
@@ -23,6 +24,13 @@ public class Layer {
         this.z = z;
     }
 
+    /**
+     * @return a copy of this layer hidden from users
+     */
+    Layer hide() {
+        return isVisible ? new Layer(layerName, packageName, false, id, w, h, x, y, z) : this;
+    }
+
     public boolean isCoveredBy(Layer layer) {
         return z <= layer.z && packageName.contains("incallui") &&
                 x >= layer.x && y >= layer.y &&
@@ -0,0 +1,50 @@
+package com.android.androidperf;
+
+import java.util.List;
+
+/**
+ * The layers of the target package at some point, never modified once published.
+ *
+ * <p>Every change of the layers publishes a new snapshot with a higher version, so readers
+ * on any thread can use a snapshot without locking and tell a changed layer list from the
+ * version alone.</p>
+ */
+public final class LayerSnapshot {
+    static final LayerSnapshot EMPTY = new LayerSnapshot(0, List.of());
+
+    private final long version;
+    private final List<Layer> layers;
+
+    private LayerSnapshot(long version, List<Layer> layers) {
+        this.version = version;
+        this.layers = layers;
+    }
+
+    /**
+     * @param layers the new layers
+     * @return a snapshot of the layers with the next version
+     */
+    LayerSnapshot next(List<Layer> layers) {
+        return new LayerSnapshot(version + 1, List.copyOf(layers));
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the layers sorted by z order, unmodifiable
+     */
+    public List<Layer> getLayers() {
+        return layers;
+    }
+
+    public boolean isEmpty() {
+        return layers.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LayerSnapshot#%d%s", version, layers);
+    }
+}
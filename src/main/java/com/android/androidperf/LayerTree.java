@@ -0,0 +1,382 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+
+/**
+ * The layers of a "dumpsys SurfaceFlinger" output, parsed in a single forward pass.
+ *
+ * <p>Every header line like "+ Layer 0x7f162ba23000 (StatusBar#0)" starts a node, and the
+ * lines up to the next header hold its properties: buffer size, slot, position, z order and
+ * the "parent=" references, which link the nodes into a tree. Lookups by layer name match the
+ * names as prefixes of the parenthesized part of the headers, like the regular expressions
+ * they replace. Nodes turned into a {@link Layer} are consumed and left out of later lookups,
+ * so layers sharing the same name are matched one after the other.</p>
+ */
+final class LayerTree {
+    private static final Logger LOGGER = LogManager.getLogger(LayerTree.class);
+
+    /**
+     * A layer of the dump, with its properties
+     */
+    static final class Node {
+        private final String dump;
+        // position of the "[*+] " starting the header, end of the header line, end of the block
+        final int start;
+        final int headerEnd;
+        int end;
+        // position right after "Layer" in the header, a name follows one of the '(' after it
+        private final int nameSearchStart;
+        boolean hasSlot = false;
+        boolean hasActiveBuffer = false;
+        int w = -1, h = -1, x = -1, y = -1, z = -1;
+        boolean consumed = false;
+
+        private Node(String dump, int start, int headerEnd, int nameSearchStart) {
+            this.dump = dump;
+            this.start = start;
+            this.headerEnd = headerEnd;
+            this.nameSearchStart = nameSearchStart;
+        }
+
+        /**
+         * @param layerName name from the layer list
+         * @return true if the header holds "(" directly followed by the name, and ")" after it
+         */
+        boolean matches(String layerName) {
+            int open = indexOf(dump, '(', nameSearchStart, headerEnd);
+            while (open >= 0) {
+                if (dump.startsWith(layerName, open + 1)) {
+                    return indexOf(dump, ')', open + 1 + layerName.length(), headerEnd) >= 0;
+                }
+                open = indexOf(dump, '(', open + 1, headerEnd);
+            }
+            return false;
+        }
+
+        String getHeader() {
+            return dump.substring(start, headerEnd);
+        }
+
+        private boolean sameTextAs(Node node) {
+            return end - start == node.end - node.start && dump.regionMatches(start, dump, node.start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return getHeader();
+        }
+    }
+
+    /**
+     * A "parent=" property
+     */
+    private static final class ParentRef {
+        final Node child;
+        final int position;
+
+        ParentRef(Node child, int position) {
+            this.child = child;
+            this.position = position;
+        }
+    }
+
+    private final ArrayList<Node> nodes = new ArrayList<>();
+    // references by the text following "parent=", up to the end of the line
+    private final TreeMap<String, ArrayList<ParentRef>> parentRefs = new TreeMap<>();
+
+    private LayerTree() {
+    }
+
+    /**
+     * Parse the output of "dumpsys SurfaceFlinger", or the lines of it holding the layer headers
+     * and properties
+     *
+     * @param dump the output
+     * @return the layers
+     */
+    static LayerTree parse(String dump) {
+        LayerTree tree = new LayerTree();
+        int length = dump.length();
+        Node current = null;
+        int lineStart = 0;
+        while (lineStart <= length) {
+            int lineEnd = lineEnd(dump, lineStart);
+            Node header = parseHeader(dump, lineStart, lineEnd);
+            if (header != null) {
+                if (current != null)
+                    tree.finish(current, header.start);
+                tree.nodes.add(header);
+                current = header;
+            } else if (current != null) {
+                tree.collectParentRefs(current, lineStart, lineEnd);
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (current != null)
+            tree.finish(current, length);
+        return tree;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        // the characters '.' does not match in java.util.regex
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static int lineEnd(String dump, int from) {
+        int i = from;
+        while (i < dump.length() && !isLineTerminator(dump.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /**
+     * @return the node started by the line if it is a header: "* " or "+ ", then "Layer", then
+     * "(" and ")"
+     */
+    private static Node parseHeader(String dump, int lineStart, int lineEnd) {
+        int start = -1;
+        for (int i = lineStart; i + 1 < lineEnd; i++) {
+            char c = dump.charAt(i);
+            if ((c == '*' || c == '+') && dump.charAt(i + 1) == ' ') {
+                start = i;
+                break;
+            }
+        }
+        if (start < 0)
+            return null;
+        int layer = indexOf(dump, "Layer", start + 2, lineEnd);
+        if (layer < 0)
+            return null;
+        int open = indexOf(dump, '(', layer + 5, lineEnd);
+        if (open < 0 || indexOf(dump, ')', open + 1, lineEnd) < 0)
+            return null;
+        return new Node(dump, start, lineEnd, layer + 5);
+    }
+
+    private void collectParentRefs(Node node, int lineStart, int lineEnd) {
+        String dump = node.dump;
+        int index = indexOf(dump, "parent=", lineStart, lineEnd);
+        while (index >= 0) {
+            int valueStart = index + "parent=".length();
+            parentRefs.computeIfAbsent(dump.substring(valueStart, lineEnd), k -> new ArrayList<>())
+                    .add(new ParentRef(node, index));
+            index = indexOf(dump, "parent=", valueStart, lineEnd);
+        }
+    }
+
+    /**
+     * Read the properties of a node once the start of the next one is known
+     */
+    private void finish(Node node, int end) {
+        node.end = end;
+        String dump = node.dump;
+        int from = node.headerEnd;
+        node.hasSlot = indexOf(dump, "slot=", from, end) >= 0;
+
+        // activeBuffer=[1440x  84:1440,  1]
+        for (int i = indexOf(dump, "activeBuffer=[", from, end); i >= 0; i = indexOf(dump, "activeBuffer=[", i + 1, end)) {
+            int wStart = i + "activeBuffer=[".length();
+            int wEnd = skipSpacesAndDigits(dump, wStart, end);
+            if (wEnd == wStart || wEnd >= end || dump.charAt(wEnd) != 'x')
+                continue;
+            int hEnd = skipSpacesAndDigits(dump, wEnd + 1, end);
+            if (hEnd == wEnd + 1 || hEnd >= end || dump.charAt(hEnd) != ':')
+                continue;
+            try {
+                node.w = Integer.parseInt(dump.substring(wStart, wEnd).strip());
+                node.h = Integer.parseInt(dump.substring(wEnd + 1, hEnd).strip());
+                node.hasActiveBuffer = true;
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid buffer size of " + node + ": " + e);
+            }
+            break;
+        }
+        if (!node.hasActiveBuffer)
+            return;
+
+        // pos=(0,84), z=    21005,
+        int[] value = new int[2];
+        try {
+            for (int i = indexOf(dump, "pos=(", from, end); i >= 0; i = indexOf(dump, "pos=(", i + 1, end)) {
+                int first = parseInt(dump, i + "pos=(".length(), end, ',', value, 0);
+                if (first < 0)
+                    continue;
+                int second = parseInt(dump, first + 1, end, ')', value, 1);
+                if (second < 0 || second + 1 >= end || dump.charAt(second + 1) != ',')
+                    continue;
+                node.x = value[0];
+                node.y = value[1];
+                break;
+            }
+            for (int i = indexOf(dump, "z=", from, end); i >= 0; i = indexOf(dump, "z=", i + 1, end)) {
+                if (parseInt(dump, i + "z=".length(), end, ',', value, 0) >= 0) {
+                    node.z = value[0];
+                    break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.error("Invalid position of " + node + ": " + e);
+        }
+    }
+
+    /**
+     * @return position of the first occurrence of the text lying entirely before the end, -1 if none
+     */
+    private static int indexOf(String dump, String text, int from, int end) {
+        char first = text.charAt(0);
+        for (int i = from, last = end - text.length(); i <= last; i++) {
+            if (dump.charAt(i) == first && dump.startsWith(text, i))
+                return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(String dump, char c, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (dump.charAt(i) == c)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int skipSpacesAndDigits(String dump, int from, int end) {
+        int i = from;
+        while (i < end && (dump.charAt(i) == ' ' || isDigit(dump.charAt(i))))
+            i++;
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWhitespace(char c) {
+        // \s of java.util.regex
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Parse optional whitespace, then an integer directly followed by a terminator
+     *
+     * @return position of the terminator, -1 if the text does not match
+     * @throws NumberFormatException if the number does not fit an int
+     */
+    private static int parseInt(String dump, int from, int end, char terminator, int[] into, int index) {
+        int i = from;
+        while (i < end && isWhitespace(dump.charAt(i)))
+            i++;
+        int numberStart = i;
+        if (i < end && dump.charAt(i) == '-')
+            i++;
+        int digits = i;
+        while (i < end && isDigit(dump.charAt(i)))
+            i++;
+        if (i == digits || i >= end || dump.charAt(i) != terminator)
+            return -1;
+        into[index] = Integer.parseInt(dump.substring(numberStart, i));
+        return i;
+    }
+
+    List<Node> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * Find the children of a layer among the nodes not consumed yet
+     *
+     * @param parent        name of the parent layer, matched as a prefix of the "parent=" references
+     * @param layerListFull the full layer list
+     * @return the names of the children from the layer list, in the order of the dump, once per reference
+     */
+    ArrayList<String> findChildren(String parent, String[] layerListFull) {
+        ArrayList<ParentRef> refs = new ArrayList<>();
+        for (var entry : parentRefs.tailMap(parent, true).entrySet()) {
+            if (!entry.getKey().startsWith(parent))
+                break;
+            for (ParentRef ref : entry.getValue()) {
+                if (!ref.child.consumed)
+                    refs.add(ref);
+            }
+        }
+        refs.sort(Comparator.comparingInt(ref -> ref.position));
+        ArrayList<String> children = new ArrayList<>();
+        for (ParentRef ref : refs) {
+            for (String layerName : layerListFull) {
+                if (ref.child.matches(layerName)) {
+                    children.add(layerName);
+                    break;
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Build the layers of a package and of their children. A layer needs an active buffer,
+     * the ones whose buffers have a slot are skipped.
+     *
+     * @param packageName   the package
+     * @param layerListFull the full layer list, from "dumpsys SurfaceFlinger --list"
+     * @return the layers, in the order they were found
+     */
+    ArrayList<Layer> findLayers(String packageName, String[] layerListFull) {
+        ArrayList<Layer> layers = new ArrayList<>();
+        ArrayDeque<String> layerList = new ArrayDeque<>();
+        for (String layerName : layerListFull) {
+            if (layerName.contains(packageName))
+                layerList.add(layerName);
+        }
+        HashMap<String, Integer> idMap = new HashMap<>();
+        // a child is looked up at most once per node it may match, so that cycles end
+        HashMap<String, Integer> lookups = new HashMap<>();
+        while (!layerList.isEmpty()) {
+            String layerName = layerList.poll();
+            boolean childrenAdded = false;
+            for (Node node : nodes) {
+                if (node.consumed || !node.matches(layerName))
+                    continue;
+                if (!childrenAdded) {
+                    ArrayList<String> children = findChildren(layerName, layerListFull);
+                    children.removeIf(layerList::contains);
+                    for (String child : children) {
+                        int count = lookups.merge(child, 1, Integer::sum);
+                        if (count <= countMatches(child))
+                            layerList.add(child);
+                    }
+                    childrenAdded = true;
+                }
+                // * Layer 0x7615a5469f98 (SurfaceView - com.android.chrome/com.google.android.apps.chrome.Main#0)
+                //      buffer: buffer=0x7615a547b140 slot=2
+                if (node.hasSlot || !node.hasActiveBuffer)
+                    continue;
+
+                int id = idMap.getOrDefault(layerName, 0);
+                layers.add(new Layer(layerName, packageName, true, id, node.w, node.h, node.x, node.y, node.z));
+                idMap.put(layerName, id + 1);
+                consume(node);
+                break;
+            }
+        }
+        return layers;
+    }
+
+    private int countMatches(String layerName) {
+        int count = 0;
+        for (Node node : nodes) {
+            if (node.matches(layerName))
+                count++;
+        }
+        return count;
+    }
+
+    private void consume(Node node) {
+        // nodes with the same text cannot be told apart, they go together
+        for (Node other : nodes) {
+            if (!other.consumed && other.sameTextAs(node))
+                other.consumed = true;
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package com.android.androidperf;
 
+import java.util.Arrays;
+
 public class Main {
     public static void main(String[] args) {
-        MainApplication.main(args);
+        // the GUI classes are not touched in headless mode, so JavaFX is never loaded
+        if (Arrays.asList(args).contains("--headless"))
+            HeadlessMain.main(args);
+        else
+            MainApplication.main(args);
     }
 }
@@ -7,6 +7,7 @@ import javafx.scene.control.Alert;
 import javafx.stage.Stage;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 public class MainApplication extends Application {
     private FXMLLoader fxmlLoader;
@@ -33,6 +34,10 @@ public class MainApplication extends Application {
     }
 
     public static void main(String[] args) {
-        launch();
+        // the launcher of mvn javafx:run and of the jlink image starts here, see also Main
+        if (Arrays.asList(args).contains("--headless"))
+            HeadlessMain.main(args);
+        else
+            launch(args);
     }
 }
\ No newline at end of file
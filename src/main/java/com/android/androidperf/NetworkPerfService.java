@@ -1,10 +1,10 @@
 package com.android.androidperf;
 
-import javafx.application.Platform;
-import javafx.scene.chart.XYChart;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -46,29 +46,17 @@ public class NetworkPerfService extends BasePerfService {
     }
 
     private Map<String, NetStatsData> lastStats = new LinkedHashMap<>();
-
-    static long convertToLong(byte[] bytes, int index)
-    {
-        long value = 0L;
-
-        try {
-            // Iterating through for loop
-            for (int i = index + 8 - 1; i >= index ; i--) {
-                // Shifting previous value 8 bits to right and
-                // add it with next value
-                value = (value << 8) + (bytes[i] & 255);
-            }
-        } catch (Exception e) {
-            LOGGER.error(e);
-        }
-
-        return value;
-    }
-
-    private NetStatsData fromBytes(byte[] bytes) {
+    // push mode: the traffic of the app is pulled by a task of its own, timed on the host
+    private Map<String, NetStatsData> lastAppStats = new LinkedHashMap<>();
+    private long lastAppNanos = 0;
+    private SamplingScheduler.Task appTask = null;
+
+    private NetStatsData fromBytes(ByteBuffer bytes) {
+        // the server replies with four little-endian longs: rx bytes, rx packets, tx bytes, tx packets
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
         long[] data = new long[4];
-        for (int i = 0; i < 4; i++) {
-            data[i] = convertToLong(bytes, i * 8);
+        for (int i = 0; i < 4 && bytes.remaining() >= Long.BYTES; i++) {
+            data[i] = bytes.getLong();
         }
         return new NetStatsData(data[0], data[1], data[2], data[3]);
     }
@@ -77,14 +65,21 @@ public class NetworkPerfService extends BasePerfService {
         return traffic.mTxBytes != 0 || traffic.mRxBytes != 0;
     }
 
+    /**
+     * @return traffic of the target app, by contacting with AndroidPerfServer
+     */
+    private NetStatsData acquireAppData() {
+        NetStatsData netStatsData;
+        try (PerfReply reply = device.sendMSG(String.format("network %d", device.getTargetPackageUid()))) {
+            netStatsData = fromBytes(reply.getBytes());
+        }
+        LOGGER.debug(String.format("rx %d %d, tx %d %d", netStatsData.mRxBytes, netStatsData.mRxPackets, netStatsData.mTxBytes, netStatsData.mTxPackets));
+        return netStatsData;
+    }
+
     Map<String, NetStatsData> acquireNetworkData() {
         var ret = new LinkedHashMap<String, NetStatsData>();
-
-        // get traffic by contacting with AndroidPerfServer
-        byte[] byteData = device.sendMSG(String.format("network %d", device.getTargetPackageUid()));
-        NetStatsData netStatsData = fromBytes(byteData);
-        LOGGER.debug(String.format("rx %d %d, tx %d %d", netStatsData.mRxBytes, netStatsData.mRxPackets, netStatsData.mTxBytes, netStatsData.mTxPackets));
-        ret.put(APP_STRING, netStatsData);
+        ret.put(APP_STRING, acquireAppData());
 
         // get interface traffic by reading /proc/net/dev, and analyse it
         String []activeInterface = device.execCmd("ifconfig -S | cut -d' ' -f1").split("\n");
@@ -104,26 +99,102 @@ public class NetworkPerfService extends BasePerfService {
         return ret;
     }
 
+    @Override
+    String getStreamCommand() {
+        return "cat /proc/net/dev";
+    }
+
+    /**
+     * The interfaces come from /proc/net/dev in the record, all of them as the ones without traffic
+     * are not shown anyway. The traffic of the app is pulled by {@link #updateApp()} meanwhile, so
+     * that the reader thread never waits for AndroidPerfServer.
+     */
+    @Override
+    void onStreamRecord(String record) {
+        var ret = new LinkedHashMap<String, NetStatsData>();
+        // face |bytes packets errs drop fifo frame compressed multicast|bytes packets ...
+        for (String line : record.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon < 0)
+                continue;
+            String[] fields = line.substring(colon + 1).strip().split("\\s+");
+            if (fields.length < 10)
+                continue;
+            try {
+                ret.put(line.substring(0, colon).strip(), new NetStatsData(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[8]), Long.parseLong(fields[9])));
+            } catch (NumberFormatException e) {
+                LOGGER.debug("Invalid line of /proc/net/dev: " + line);
+            }
+        }
+        lastStats = emitRates(ret, lastStats, interval, timer);
+    }
+
+    /**
+     * Sample the traffic of the app in push mode, at the sampling period of the service
+     */
+    private void updateApp() {
+        long now = System.nanoTime();
+        var ret = new LinkedHashMap<String, NetStatsData>();
+        ret.put(APP_STRING, acquireAppData());
+        double seconds = lastAppNanos == 0 ? 0 : (now - lastAppNanos) / 1e9;
+        lastAppNanos = now;
+        lastAppStats = emitRates(ret, lastAppStats, seconds, Math.max(0, now - device.getPerfStartNanos()) / 1e9);
+    }
+
+    @Override
+    void begin() {
+        lastStats = new LinkedHashMap<>();
+        lastAppStats = new LinkedHashMap<>();
+        lastAppNanos = 0;
+        super.begin();
+        if (isStreamed())
+            appTask = schedule("app", this::updateApp, device.getPerfStartDelay(), device.getSamplingPeriod(getServiceName()));
+    }
+
+    @Override
+    void setPeriod(long period) {
+        super.setPeriod(period);
+        SamplingScheduler.Task task = appTask;
+        if (task != null && !task.isCancelled())
+            task.setPeriod(period);
+    }
+
     @Override
     void update() {
-        var retrievedData = acquireNetworkData();
-        var chartAppendData = new LinkedHashMap<String, XYChart.Data<Number, Number>>();
+        lastStats = emitRates(acquireNetworkData(), lastStats, interval, timer);
+        super.update();
+    }
+
+    /**
+     * Emit the traffic since the previous sample
+     *
+     * @param retrievedData the counters by interface, and of the app
+     * @param previous      the counters of the previous sample
+     * @param interval      seconds since the previous sample, 0 for the first one
+     * @param time          seconds since the start of the session
+     * @return the counters to compare the next sample with
+     */
+    private Map<String, NetStatsData> emitRates(Map<String, NetStatsData> retrievedData, Map<String, NetStatsData> previous,
+                                                double interval, double time) {
+        var chartAppendData = new LinkedHashMap<String, Double>();
 
         if (retrievedData.size() == 0)
-            return;
+            return previous;
+
+        // traffic is shown as a rate, whatever the sampling period
+        double seconds = interval > 0 ? interval : 1;
 
         retrievedData.forEach((intf, data) -> {
-            var deltaData = NetStatsData.subtract(data, lastStats.computeIfAbsent(intf, k -> data));
+            var deltaData = NetStatsData.subtract(data, previous.computeIfAbsent(intf, k -> data));
             if (hasDataTransmitted(deltaData)) {
                 // Only show the interface that has traffic
-                chartAppendData.put(String.format("%s recv", intf), new XYChart.Data<>(timer, deltaData.mRxBytes / 1024));
-                chartAppendData.put(String.format("%s send", intf), new XYChart.Data<>(timer, deltaData.mTxBytes / 1024));
+                chartAppendData.put(String.format("%s recv", intf), deltaData.mRxBytes / 1024. / seconds);
+                chartAppendData.put(String.format("%s send", intf), deltaData.mTxBytes / 1024. / seconds);
             }
         });
 
-        lastStats = retrievedData;
-        Platform.runLater(() -> chart.addDataToChart(chartAppendData));
-
-        super.update();
+        emit(time, chartAppendData);
+        return retrievedData;
     }
 }
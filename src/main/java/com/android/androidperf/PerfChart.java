@@ -0,0 +1,46 @@
+package com.android.androidperf;
+
+import javafx.scene.chart.XYChart;
+
+import java.util.Map;
+
+/**
+ * A chart of perf samples, either a {@link BaseLineChart} built on the JavaFX chart nodes or a
+ * {@link CanvasLineChart} drawing high-frequency series directly. Only used on the FX thread.
+ */
+public interface PerfChart {
+    /**
+     * Reset the chart
+     *
+     * @param chartName title of the chart
+     * @param series    series shown from the start, more are added as their points arrive
+     * @param yLabel    label of the y axis
+     */
+    void initLineChart(String chartName, String[] series, String yLabel);
+
+    /**
+     * Store the points of one sample. The chart is rendered once the current batch of
+     * {@link UiUpdateQueue} has been applied, see {@link #flushRender()}.
+     *
+     * @param points new point of each series
+     */
+    void addDataToChart(Map<String, XYChart.Data<Number, Number>> points);
+
+    /**
+     * Store a batch of points of one series
+     *
+     * @param series name of the series
+     * @param xs     x values in ascending order
+     * @param ys     y values
+     */
+    default void addSeriesData(String series, double[] xs, double[] ys) {
+        for (int i = 0; i < xs.length; i++) {
+            addDataToChart(Map.of(series, new XYChart.Data<>(xs[i], ys[i])));
+        }
+    }
+
+    /**
+     * Render the points stored since the last render
+     */
+    void flushRender();
+}
@@ -0,0 +1,179 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads that run the sampling work of {@link SamplingScheduler}.
+ *
+ * <p>In the default platform mode a pool of worker threads runs the sampling, and a run
+ * blocks one of them while waiting on adb. In virtual mode (-Dandroidperf.threads=virtual)
+ * every run gets a new virtual thread, on which the blocking jadb I/O happens as well, and only
+ * the number of concurrent runs is bounded. Virtual threads need a Java 21 runtime; on older
+ * runtimes the mode falls back to platform threads.</p>
+ */
+final class PerfExecutors {
+    private static final Logger LOGGER = LogManager.getLogger(PerfExecutors.class);
+
+    enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    private static final Mode mode = resolveMode();
+    private static final int DEFAULT_MAX_WORKERS = 32;
+
+    private PerfExecutors() {
+    }
+
+    /**
+     * Semaphore whose permits can also be taken away, for the workers to shrink
+     */
+    private static final class Permits extends Semaphore {
+        Permits(int permits) {
+            super(permits);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    /**
+     * A bounded set of workers, resized within [minimum size, maximum size]
+     */
+    static final class Workers {
+        private final ExecutorService executor;
+        private final Permits permits;
+        private final int minSize;
+        private final int maxSize;
+        private volatile int size;
+
+        private Workers(ExecutorService executor, Permits permits, int minSize, int maxSize) {
+            this.executor = executor;
+            this.permits = permits;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.size = minSize;
+        }
+
+        void execute(Runnable task) {
+            if (permits == null) {
+                executor.execute(task);
+                return;
+            }
+            executor.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * Grow or shrink the workers, within their minimum and maximum size. Surplus threads
+         * end once they are idle.
+         *
+         * @param size the wanted number of workers
+         */
+        synchronized void resize(int size) {
+            size = Math.max(minSize, Math.min(maxSize, size));
+            int delta = size - this.size;
+            if (delta == 0)
+                return;
+            if (permits != null) {
+                if (delta > 0)
+                    permits.release(delta);
+                else
+                    permits.reduce(-delta);
+            } else {
+                ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+                if (delta > 0) {
+                    pool.setMaximumPoolSize(size);
+                    pool.setCorePoolSize(size);
+                } else {
+                    pool.setCorePoolSize(size);
+                    pool.setMaximumPoolSize(size);
+                }
+            }
+            this.size = size;
+            LOGGER.debug(String.format("Workers resized to %d", size));
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Mode resolveMode() {
+        if (!"virtual".equalsIgnoreCase(System.getProperty("androidperf.threads", "platform")))
+            return Mode.PLATFORM;
+        ExecutorService executor = createVirtualExecutor();
+        if (executor == null)
+            return Mode.PLATFORM;
+        executor.shutdown();
+        return Mode.VIRTUAL;
+    }
+
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            // looked up reflectively so that the code still builds and runs on Java 11
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("Virtual threads are not supported by this runtime, using platform threads");
+            return null;
+        }
+    }
+
+    static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param prefix thread name prefix
+     * @return a factory of daemon platform threads named prefix-N
+     */
+    static ThreadFactory namedThreadFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @return workers bounded by -Dandroidperf.workers (by default 32), starting with the number of
+     * cores within [2, 8] and resized by the scheduler to the number of devices within these bounds
+     */
+    static Workers newWorkers() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxSize = Math.max(1, Integer.getInteger("androidperf.workers", DEFAULT_MAX_WORKERS));
+        int size = Math.min(maxSize, Math.max(2, Math.min(8, cores)));
+        if (mode == Mode.VIRTUAL) {
+            ExecutorService executor = createVirtualExecutor();
+            if (executor != null)
+                return new Workers(executor, new Permits(size), size, maxSize);
+        }
+        return new Workers(Executors.newFixedThreadPool(size, namedThreadFactory("perf-worker")), null, size, maxSize);
+    }
+}
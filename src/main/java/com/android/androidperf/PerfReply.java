@@ -0,0 +1,133 @@
+package com.android.androidperf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reply of AndroidPerfServer, backed by a pooled buffer.
+ *
+ * <p>The reply is read until the message terminator, which is matched incrementally
+ * (KMP) as bytes arrive, so every byte is looked at once. The bytes are exposed as a
+ * read-only view on the pooled buffer, thus the reply must be closed after use and
+ * the view must not be kept afterwards.</p>
+ */
+public class PerfReply implements AutoCloseable {
+    static final PerfReply EMPTY = new PerfReply(null, 0);
+
+    private byte[] buffer;
+    private final int length;
+    private long queueNanos = 0;
+
+    private PerfReply(byte[] buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    /**
+     * Decodes replies ending with a fixed terminator
+     */
+    static class Decoder {
+        private final byte[] terminator;
+        private final int[] failure;
+
+        Decoder(String terminator) {
+            this.terminator = terminator.getBytes(StandardCharsets.UTF_8);
+            failure = new int[this.terminator.length];
+            for (int i = 1, k = 0; i < this.terminator.length; i++) {
+                while (k > 0 && this.terminator[i] != this.terminator[k])
+                    k = failure[k - 1];
+                if (this.terminator[i] == this.terminator[k])
+                    k++;
+                failure[i] = k;
+            }
+        }
+
+        /**
+         * Read one reply from the stream
+         *
+         * @param inputStream the stream
+         * @return the reply without its terminator, or {@link #EMPTY} if the stream ended first
+         */
+        PerfReply read(InputStream inputStream) throws IOException {
+            byte[] buffer = BufferPool.SHARED.acquire();
+            int length = 0;
+            int matched = 0;
+            try {
+                while (true) {
+                    if (length == buffer.length)
+                        buffer = grow(buffer);
+                    int len = inputStream.read(buffer, length, buffer.length - length);
+                    if (len == -1) {
+                        BufferPool.SHARED.release(buffer);
+                        return EMPTY;
+                    }
+                    for (int i = length; i < length + len; i++) {
+                        byte b = buffer[i];
+                        while (matched > 0 && b != terminator[matched])
+                            matched = failure[matched - 1];
+                        if (b == terminator[matched])
+                            matched++;
+                        if (matched == terminator.length)
+                            return new PerfReply(buffer, i + 1 - terminator.length);
+                    }
+                    length += len;
+                }
+            } catch (IOException e) {
+                BufferPool.SHARED.release(buffer);
+                throw e;
+            }
+        }
+
+        private static byte[] grow(byte[] buffer) {
+            byte[] grown = Arrays.copyOf(buffer, buffer.length * 2);
+            BufferPool.SHARED.release(buffer);
+            return grown;
+        }
+    }
+
+    /**
+     * @return a read-only view of the reply, valid until the reply is closed
+     */
+    public ByteBuffer getBytes() {
+        if (buffer == null)
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        return ByteBuffer.wrap(buffer, 0, length).slice().asReadOnlyBuffer();
+    }
+
+    void setQueueNanos(long queueNanos) {
+        this.queueNanos = queueNanos;
+    }
+
+    /**
+     * @return time the request waited for a server connection, in milliseconds
+     */
+    public double getQueueMillis() {
+        return queueNanos / 1e6;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    @Override
+    public String toString() {
+        if (buffer == null)
+            return "";
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        if (buffer != null) {
+            BufferPool.SHARED.release(buffer);
+            buffer = null;
+        }
+    }
+}
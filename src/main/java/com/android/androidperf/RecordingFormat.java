@@ -0,0 +1,103 @@
+package com.android.androidperf;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of the binary session recordings (*.aprf), all numbers little-endian.
+ *
+ * <pre>
+ * file    := header chunk* [footer]
+ * header  := "APRF" u8:version varint:length meta       meta := varint:count (string:key string:value)*
+ * chunk   := 'C' u32:length u32:crc32 payload
+ * payload := varint:index i64:firstTime i64:lastTime varint:seriesCount summary* column*
+ * summary := string:service string:series u8:kind varint:count f32:min f32:max f64:sum varint:columnLength
+ * column  := varint:zigzag(firstTime - chunk firstTime) varint:zigzag(timeDelta)* f32:value*
+ * footer  := 'F' u32:chunkCount (i64:offset i64:firstTime i64:lastTime)* i64:footerOffset u32:crc32 "APRE"
+ * string  := varint:length utf8
+ * </pre>
+ *
+ * Times are microseconds since the start of the session. The kind of a series tells whether
+ * its values came as regular samples ({@link #KIND_SAMPLE}) or as batches with their own
+ * times such as frame times ({@link #KIND_BATCH}), see {@link SampleSink}. A chunk is self-contained, so a file
+ * without footer (the recorder crashed) is read by scanning the chunks up to the first one
+ * whose length or CRC does not check out.
+ */
+final class RecordingFormat {
+    static final byte[] MAGIC = {'A', 'P', 'R', 'F'};
+    static final byte[] END_MAGIC = {'A', 'P', 'R', 'E'};
+    static final int VERSION = 1;
+    static final byte CHUNK = 'C';
+    static final byte FOOTER = 'F';
+    static final byte KIND_SAMPLE = 0;
+    static final byte KIND_BATCH = 1;
+    static final int CHUNK_HEADER_SIZE = 9;
+    static final int FOOTER_ENTRY_SIZE = 24;
+    static final int TRAILER_SIZE = 16;
+    static final String FILE_EXTENSION = ".aprf";
+
+    private RecordingFormat() {
+    }
+
+    static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int getVarInt(ByteBuffer buffer) {
+        long value = getVarLong(buffer);
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Varint out of range: " + value);
+        return (int) value;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void putString(ByteBuffer buffer, byte[] utf8) {
+        putVarLong(buffer, utf8.length);
+        buffer.put(utf8);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = getVarInt(buffer);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the upper bound of the encoded size of a string
+     */
+    static int stringSize(byte[] utf8) {
+        return 5 + utf8.length;
+    }
+}
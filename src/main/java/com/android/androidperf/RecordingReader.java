@@ -0,0 +1,460 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Random access to a session recording, see {@link RecordingFormat}. The file is memory-mapped;
+ * only the header and the chunk index are kept on the heap, chunks are decoded on demand.
+ *
+ * <p>The chunk index comes from the footer, or, for a recording whose recorder did not
+ * close it, from a scan of the chunks that stops at the first damaged one.</p>
+ *
+ * <p>Time-range queries binary-search the chunk index and decode only the column of the
+ * requested series in the chunks overlapping the range. Aggregates take the per-chunk
+ * summaries of the chunks fully inside the range and decode only the two boundary chunks.</p>
+ */
+public class RecordingReader implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(RecordingReader.class);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer mapped;
+    private final LinkedHashMap<String, String> meta = new LinkedHashMap<>();
+    private long[] offsets;
+    private long[] firstTimes;
+    private long[] lastTimes;
+    private boolean complete;
+
+    /**
+     * The values of one series within a chunk
+     */
+    public static class Series {
+        public final String service;
+        public final String name;
+        public final byte kind;
+        public final int count;
+        public final float min;
+        public final float max;
+        public final double sum;
+        final int columnLength;
+        int columnOffset;
+        long[] times;
+        float[] values;
+
+        private Series(String service, String name, byte kind, int count, float min, float max, double sum, int columnLength) {
+            this.service = service;
+            this.name = name;
+            this.kind = kind;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+            this.columnLength = columnLength;
+        }
+
+        /**
+         * @return time of every value, in microseconds since the start of the session
+         */
+        public long[] getTimes() {
+            return times;
+        }
+
+        public float[] getValues() {
+            return values;
+        }
+    }
+
+    /**
+     * A decoded chunk
+     */
+    public static class Chunk {
+        public final int index;
+        public final long firstTime;
+        public final long lastTime;
+        public final List<Series> series;
+
+        private Chunk(int index, long firstTime, long lastTime, List<Series> series) {
+            this.index = index;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.series = series;
+        }
+    }
+
+    /**
+     * The values of one series within a time range
+     */
+    public static class Range {
+        public final long[] times;
+        public final float[] values;
+
+        private Range(long[] times, float[] values) {
+            this.times = times;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Statistics of one series within a time range
+     */
+    public static class Aggregate {
+        public final long count;
+        public final double min;
+        public final double max;
+        public final double sum;
+
+        private Aggregate(long count, double min, double max, double sum) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+        }
+
+        public double getAverage() {
+            return count == 0 ? Double.NaN : sum / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d min=%.3f max=%.3f avg=%.3f", count, min, max, getAverage());
+        }
+    }
+
+    public RecordingReader(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Recording too large to map: " + path);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long dataStart = readHeader();
+            if (!readFooter())
+                scanChunks(dataStart);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Malformed recording " + path, e);
+        }
+    }
+
+    /**
+     * @return a little-endian view of a region of the mapped file
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (position < 0 || length < 0 || position + length > mapped.capacity())
+            throw new EOFException("Unexpected end of recording " + path);
+        return mapped.duplicate().position((int) position).limit((int) position + length).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ByteBuffer payload(int index) throws IOException {
+        ByteBuffer header = read(offsets[index], RecordingFormat.CHUNK_HEADER_SIZE);
+        return read(offsets[index] + RecordingFormat.CHUNK_HEADER_SIZE, header.getInt(1));
+    }
+
+    private long readHeader() throws IOException {
+        ByteBuffer start = read(0, (int) Math.min(channel.size(), 16));
+        byte[] magic = new byte[4];
+        start.get(magic);
+        if (!Arrays.equals(magic, RecordingFormat.MAGIC))
+            throw new IOException("Not a recording: " + path);
+        int version = start.get();
+        if (version != RecordingFormat.VERSION)
+            throw new IOException("Unsupported recording version " + version);
+        int length = RecordingFormat.getVarInt(start);
+        long metaStart = start.position();
+        ByteBuffer buffer = read(metaStart, length);
+        int count = RecordingFormat.getVarInt(buffer);
+        for (int i = 0; i < count; i++) {
+            meta.put(RecordingFormat.getString(buffer), RecordingFormat.getString(buffer));
+        }
+        return metaStart + length;
+    }
+
+    private boolean readFooter() throws IOException {
+        long size = channel.size();
+        if (size < RecordingFormat.TRAILER_SIZE + 5)
+            return false;
+        ByteBuffer trailer = read(size - RecordingFormat.TRAILER_SIZE, RecordingFormat.TRAILER_SIZE);
+        long footerOffset = trailer.getLong();
+        int crc = trailer.getInt();
+        byte[] magic = new byte[4];
+        trailer.get(magic);
+        if (!Arrays.equals(magic, RecordingFormat.END_MAGIC) || footerOffset < 0 || footerOffset > size - RecordingFormat.TRAILER_SIZE - 5)
+            return false;
+        ByteBuffer footer = read(footerOffset, (int) (size - RecordingFormat.TRAILER_SIZE - footerOffset));
+        CRC32 check = new CRC32();
+        check.update(footer.duplicate());
+        if ((int) check.getValue() != crc || footer.get() != RecordingFormat.FOOTER)
+            return false;
+        int count = footer.getInt();
+        if (count < 0 || footer.remaining() != (long) count * RecordingFormat.FOOTER_ENTRY_SIZE)
+            return false;
+        offsets = new long[count];
+        firstTimes = new long[count];
+        lastTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = footer.getLong();
+            firstTimes[i] = footer.getLong();
+            lastTimes[i] = footer.getLong();
+        }
+        complete = true;
+        return true;
+    }
+
+    private void scanChunks(long position) throws IOException {
+        long size = channel.size();
+        ArrayList<long[]> index = new ArrayList<>();
+        while (position + RecordingFormat.CHUNK_HEADER_SIZE <= size) {
+            ByteBuffer header = read(position, RecordingFormat.CHUNK_HEADER_SIZE);
+            int length = header.getInt(1);
+            if (header.get(0) != RecordingFormat.CHUNK || length < 0 || position + RecordingFormat.CHUNK_HEADER_SIZE + length > size)
+                break;
+            ByteBuffer payload = read(position + RecordingFormat.CHUNK_HEADER_SIZE, length);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != header.getInt(5))
+                break;
+            RecordingFormat.getVarLong(payload);
+            index.add(new long[]{position, payload.getLong(), payload.getLong()});
+            position += RecordingFormat.CHUNK_HEADER_SIZE + length;
+        }
+        if (position < size)
+            LOGGER.warn(String.format("Recording %s is incomplete, recovered %d chunks", path, index.size()));
+        offsets = new long[index.size()];
+        firstTimes = new long[index.size()];
+        lastTimes = new long[index.size()];
+        for (int i = 0; i < index.size(); i++) {
+            offsets[i] = index.get(i)[0];
+            firstTimes[i] = index.get(i)[1];
+            lastTimes[i] = index.get(i)[2];
+        }
+        complete = false;
+    }
+
+    /**
+     * Read and decode a chunk
+     *
+     * @param index index of the chunk
+     * @return the chunk with all its values
+     * @throws IOException if the chunk cannot be read or is damaged
+     */
+    public Chunk readChunk(int index) throws IOException {
+        ByteBuffer header = read(offsets[index], RecordingFormat.CHUNK_HEADER_SIZE);
+        ByteBuffer payload = payload(index);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != header.getInt(5))
+            throw new IOException(String.format("Chunk %d of %s is damaged", index, path));
+        List<Series> seriesList = readSummaries(payload);
+        for (Series series : seriesList) {
+            decodeColumn(payload, series, firstTimes[index]);
+        }
+        return new Chunk(index, firstTimes[index], lastTimes[index], seriesList);
+    }
+
+    /**
+     * Read the series summaries of a chunk, leaving the columns undecoded
+     */
+    private static List<Series> readSummaries(ByteBuffer payload) {
+        RecordingFormat.getVarInt(payload);
+        payload.getLong();
+        payload.getLong();
+        int count = RecordingFormat.getVarInt(payload);
+        ArrayList<Series> seriesList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String service = RecordingFormat.getString(payload);
+            String name = RecordingFormat.getString(payload);
+            byte kind = payload.get();
+            int values = RecordingFormat.getVarInt(payload);
+            float min = payload.getFloat();
+            float max = payload.getFloat();
+            double sum = payload.getDouble();
+            int columnLength = RecordingFormat.getVarInt(payload);
+            seriesList.add(new Series(service, name, kind, values, min, max, sum, columnLength));
+        }
+        int offset = payload.position();
+        for (Series series : seriesList) {
+            series.columnOffset = offset;
+            offset += series.columnLength;
+        }
+        return seriesList;
+    }
+
+    private static void decodeColumn(ByteBuffer payload, Series series, long chunkFirstTime) {
+        ByteBuffer column = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(series.columnOffset);
+        series.times = new long[series.count];
+        series.values = new float[series.count];
+        long time = chunkFirstTime;
+        for (int i = 0; i < series.count; i++) {
+            time += RecordingFormat.unzigzag(RecordingFormat.getVarLong(column));
+            series.times[i] = time;
+        }
+        for (int i = 0; i < series.count; i++) {
+            series.values[i] = column.getFloat();
+        }
+    }
+
+    private static Series findSeries(List<Series> seriesList, String service, String name) {
+        for (Series series : seriesList) {
+            if (series.service.equals(service) && series.name.equals(name))
+                return series;
+        }
+        return null;
+    }
+
+    /**
+     * Get the values of one series within a time range
+     *
+     * @param service name of the perf service, e.g. "FPS"
+     * @param name    name of the series, e.g. "frame"
+     * @param from    start of the range in microseconds, inclusive
+     * @param to      end of the range in microseconds, inclusive
+     * @return the values in time order within each chunk
+     * @throws IOException if the file cannot be read
+     */
+    public Range query(String service, String name, long from, long to) throws IOException {
+        long[] times = new long[64];
+        float[] values = new float[64];
+        int count = 0;
+        for (int i = findChunk(from); i < offsets.length && firstTimes[i] <= to; i++) {
+            ByteBuffer payload = payload(i);
+            Series series = findSeries(readSummaries(payload), service, name);
+            if (series == null)
+                continue;
+            decodeColumn(payload, series, firstTimes[i]);
+            for (int j = 0; j < series.count; j++) {
+                long time = series.times[j];
+                if (time < from || time > to)
+                    continue;
+                if (count == times.length) {
+                    times = Arrays.copyOf(times, count * 2);
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                times[count] = time;
+                values[count] = series.values[j];
+                count++;
+            }
+        }
+        return new Range(Arrays.copyOf(times, count), Arrays.copyOf(values, count));
+    }
+
+    /**
+     * Get min/max/average of one series within a time range, from the chunk summaries
+     * where the chunk lies fully within the range
+     *
+     * @param service name of the perf service, e.g. "CPU"
+     * @param name    name of the series, e.g. "App"
+     * @param from    start of the range in microseconds, inclusive
+     * @param to      end of the range in microseconds, inclusive
+     * @return the statistics, with count 0 if there is no value in the range
+     * @throws IOException if the file cannot be read
+     */
+    public Aggregate aggregate(String service, String name, long from, long to) throws IOException {
+        long count = 0;
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0;
+        for (int i = findChunk(from); i < offsets.length && firstTimes[i] <= to; i++) {
+            ByteBuffer payload = payload(i);
+            Series series = findSeries(readSummaries(payload), service, name);
+            if (series == null)
+                continue;
+            if (firstTimes[i] >= from && lastTimes[i] <= to) {
+                count += series.count;
+                min = Math.min(min, series.min);
+                max = Math.max(max, series.max);
+                sum += series.sum;
+                continue;
+            }
+            decodeColumn(payload, series, firstTimes[i]);
+            for (int j = 0; j < series.count; j++) {
+                if (series.times[j] < from || series.times[j] > to)
+                    continue;
+                float value = series.values[j];
+                count++;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+            }
+        }
+        return count == 0 ? new Aggregate(0, Double.NaN, Double.NaN, 0) : new Aggregate(count, min, max, sum);
+    }
+
+    /**
+     * @return every series of the recording as "service/series", from the chunk summaries
+     * @throws IOException if the file cannot be read
+     */
+    public Set<String> listSeries() throws IOException {
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        for (int i = 0; i < offsets.length; i++) {
+            for (Series series : readSummaries(payload(i))) {
+                names.add(series.service + "/" + series.name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param time microseconds since the start of the session
+     * @return index of the first chunk that ends at or after the time, or the chunk count if none
+     */
+    public int findChunk(long time) {
+        // chunks are written in time order, so their last times are sorted as well
+        int low = 0, high = lastTimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (lastTimes[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    public int getChunkCount() {
+        return offsets.length;
+    }
+
+    /**
+     * @return start time of the first chunk in microseconds, 0 if empty
+     */
+    public long getStartTime() {
+        return offsets.length == 0 ? 0 : firstTimes[0];
+    }
+
+    /**
+     * @return end time of the last chunk in microseconds, 0 if empty
+     */
+    public long getEndTime() {
+        return offsets.length == 0 ? 0 : lastTimes[lastTimes.length - 1];
+    }
+
+    public Map<String, String> getMeta() {
+        return Collections.unmodifiableMap(meta);
+    }
+
+    /**
+     * @return false if the recording has no footer, e.g. the recorder crashed
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,92 @@
+package com.android.androidperf;
+
+import javafx.collections.FXCollections;
+import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+
+/**
+ * Play/pause, speed and position controls of a replayed session, shown above its charts
+ */
+class ReplayControls implements SessionReplayer.Listener {
+    private static final Integer[] SPEEDS = {1, 2, 5, 10, 20, 50, 100};
+
+    private final DeviceView view;
+    private final HBox toolbar = new HBox();
+    private final Button playButton = new Button("Play");
+    private final Slider slider = new Slider();
+    private final Label timeLabel = new Label();
+    private SessionReplayer replayer = null;
+
+    ReplayControls(DeviceView view) {
+        this.view = view;
+    }
+
+    /**
+     * Bind the controls to the replayer and show them in the view
+     *
+     * @param sessionReplayer the replayer
+     */
+    void attach(SessionReplayer sessionReplayer) {
+        replayer = sessionReplayer;
+        double duration = replayer.getDuration();
+
+        playButton.setOnAction(e -> {
+            if (replayer.isPlaying()) {
+                replayer.pause();
+            } else {
+                if (slider.getValue() >= duration)
+                    replayer.seek(0);
+                replayer.play();
+            }
+            playButton.setText(replayer.isPlaying() ? "Pause" : "Play");
+        });
+
+        ComboBox<Integer> speedBox = new ComboBox<>(FXCollections.observableArrayList(SPEEDS));
+        speedBox.setValue(1);
+        speedBox.setOnAction(e -> {
+            if (speedBox.getValue() != null)
+                replayer.setSpeed(speedBox.getValue());
+        });
+
+        slider.setMin(0);
+        slider.setMax(Math.max(duration, 1));
+        HBox.setHgrow(slider, Priority.ALWAYS);
+        // jump when the user lets go of the thumb or clicks the track
+        slider.valueChangingProperty().addListener((obs, was, changing) -> {
+            if (!changing)
+                replayer.seek(slider.getValue());
+        });
+        slider.setOnMouseClicked(e -> replayer.seek(slider.getValue()));
+
+        toolbar.getChildren().addAll(playButton, new Label("Speed"), speedBox, slider, timeLabel);
+        view.addToolbar(toolbar);
+        showPosition(0, false);
+    }
+
+    private void showPosition(double position, boolean playing) {
+        if (!slider.isValueChanging())
+            slider.setValue(position);
+        timeLabel.setText(formatTime(position) + " / " + formatTime(replayer.getDuration()));
+        playButton.setText(playing ? "Pause" : "Play");
+    }
+
+    private static String formatTime(double seconds) {
+        long time = (long) seconds;
+        return String.format("%d:%02d:%02d", time / 3600, time / 60 % 60, time % 60);
+    }
+
+    @Override
+    public void onPosition(double position, boolean playing) {
+        UiUpdateQueue.post(() -> showPosition(position, playing));
+    }
+
+    @Override
+    public void onReset() {
+        // queued like the samples, so that no sample from before the jump lands after it
+        UiUpdateQueue.post(view::initLineCharts);
+    }
+}
@@ -0,0 +1,28 @@
+package com.android.androidperf;
+
+import java.util.Map;
+
+/**
+ * Receives the samples produced by the perf services of a device, e.g. the charts of the GUI
+ * or a file written by the headless mode. Called on the sampling threads.
+ */
+public interface SampleSink {
+    /**
+     * @param serviceName name of the perf service, e.g. "FPS"
+     * @param time        seconds elapsed since the start of the session
+     * @param values      value of every series of the sample, e.g. "App" and "Total" for CPU
+     */
+    void onSample(String serviceName, double time, Map<String, Double> values);
+
+    /**
+     * A batch of values of one series with their own times, e.g. the time of every frame
+     * rendered since the previous sample
+     *
+     * @param serviceName name of the perf service
+     * @param series      name of the series
+     * @param times       seconds elapsed since the start of the session, for every value
+     * @param values      the values
+     */
+    default void onSeries(String serviceName, String series, double[] times, double[] values) {
+    }
+}
@@ -0,0 +1,348 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The process-wide scheduler of all periodic work: sampling of every perf service of every
+ * device, plus UI polling tasks.
+ *
+ * <p>One timer thread keeps the timing and hands each tick to a bounded set of workers
+ * (see {@link PerfExecutors}). Tasks are registered under a unique name such as
+ * "serial/FPS/update"; registering a name again replaces the previous task. Runs of a task
+ * never overlap: the next run is only scheduled once the previous one has finished. A task
+ * whose runs take longer than its period backs off to a longer effective period instead of
+ * queueing up runs, and returns to the requested period once it is fast enough again.
+ * Tasks are grouped by the first segment of their name (the device serial), and a group may only
+ * hold a few workers at a time. The workers are resized with the groups so that there is one more
+ * than all groups together may hold, within the bounds of {@link PerfExecutors#newWorkers()}, and
+ * one unresponsive device cannot starve the others. A group goes away with its last task.
+ * The wall time spent in every task is tracked, see {@link #report()}.</p>
+ */
+public class SamplingScheduler {
+    private static final Logger LOGGER = LogManager.getLogger(SamplingScheduler.class);
+    private static final long REPORT_PERIOD = 60000;
+    private static final int GROUP_IN_FLIGHT_LIMIT = 2;
+    // a task that runs longer than its period gets this much head room when backing off
+    private static final double BACKOFF_FACTOR = 1.25;
+    public static final long MIN_PERIOD = 50;
+    public static final long MAX_PERIOD = 10000;
+    private static SamplingScheduler instance = null;
+
+    private final ScheduledExecutorService timer;
+    private final PerfExecutors.Workers workers;
+    private final ConcurrentHashMap<String, Task> tasks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<>();
+
+    /**
+     * The tasks sharing the first segment of their name
+     */
+    private static final class Group {
+        final AtomicInteger inFlight = new AtomicInteger();
+        // only changed within ConcurrentHashMap#compute of the group
+        int tasks = 0;
+    }
+
+    /**
+     * A registered periodic task
+     */
+    public class Task {
+        private final String name;
+        private final String groupName;
+        private final AtomicInteger group;
+        private final Runnable runnable;
+        private volatile long period;
+        private volatile long effectivePeriod;
+        private volatile boolean cancelled = false;
+        private volatile Future<?> tick;
+        // deadline of the next run, only touched by the thread that schedules it
+        private long nextRun;
+        private double averageRunNanos = 0;
+
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private volatile long firstStart = 0;
+        private volatile long lastStart = 0;
+
+        private Task(String name, Runnable runnable, long period) {
+            this.name = name;
+            int separator = name.indexOf('/');
+            this.groupName = separator < 0 ? name : name.substring(0, separator);
+            this.group = groups.compute(groupName, (k, g) -> {
+                if (g == null)
+                    g = new Group();
+                g.tasks++;
+                return g;
+            }).inFlight;
+            resizeWorkers();
+            this.runnable = runnable;
+            this.period = clampPeriod(period);
+            this.effectivePeriod = this.period;
+        }
+
+        private void onTick() {
+            if (cancelled)
+                return;
+            if (group.incrementAndGet() > GROUP_IN_FLIGHT_LIMIT) {
+                group.decrementAndGet();
+                skipped.incrementAndGet();
+                scheduleNext();
+                return;
+            }
+            try {
+                workers.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                group.decrementAndGet();
+            }
+        }
+
+        private void run() {
+            long start = System.nanoTime();
+            if (firstStart == 0)
+                firstStart = start;
+            lastStart = start;
+            try {
+                if (!cancelled)
+                    runnable.run();
+            } catch (RuntimeException e) {
+                LOGGER.error(String.format("Task %s failed", name), e);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                runs.incrementAndGet();
+                totalNanos.addAndGet(elapsed);
+                maxNanos.accumulateAndGet(elapsed, Math::max);
+                group.decrementAndGet();
+                adapt(elapsed);
+                scheduleNext();
+            }
+        }
+
+        /**
+         * Stretch the period when runs take longer than it, and move back towards the
+         * requested period once they are fast again
+         */
+        private void adapt(long elapsed) {
+            averageRunNanos = averageRunNanos == 0 ? elapsed : averageRunNanos * 0.8 + elapsed * 0.2;
+            long needed = (long) Math.ceil(Math.max(elapsed, averageRunNanos) * BACKOFF_FACTOR / 1e6);
+            long target = Math.min(MAX_PERIOD, Math.max(period, needed));
+            long current = effectivePeriod;
+            if (target > current) {
+                effectivePeriod = target;
+                LOGGER.debug(String.format("Task %s backs off to %dms (requested %dms)", name, target, period));
+            } else if (target < current) {
+                effectivePeriod = Math.max(target, (current + target) / 2);
+            }
+        }
+
+        private void scheduleNext() {
+            if (cancelled)
+                return;
+            long periodNanos = TimeUnit.MILLISECONDS.toNanos(effectivePeriod);
+            long now = System.nanoTime();
+            nextRun += periodNanos;
+            if (nextRun < now) {
+                // never queue up missed runs, count them and continue from now
+                skipped.addAndGet((now - nextRun) / periodNanos);
+                nextRun = now;
+            }
+            try {
+                tick = timer.schedule(this::onTick, nextRun - now, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ignored) {
+                return;
+            }
+            if (cancelled)
+                tick.cancel(false);
+        }
+
+        /**
+         * Stop the task, a run in progress is allowed to finish
+         */
+        public void cancel() {
+            boolean first;
+            synchronized (this) {
+                first = !cancelled;
+                cancelled = true;
+            }
+            Future<?> current = tick;
+            if (current != null)
+                current.cancel(false);
+            tasks.remove(name, this);
+            if (first)
+                leaveGroup();
+        }
+
+        private void leaveGroup() {
+            groups.computeIfPresent(groupName, (k, g) -> g.inFlight == group && --g.tasks == 0 ? null : g);
+            resizeWorkers();
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the requested period in milliseconds
+         */
+        public long getPeriod() {
+            return period;
+        }
+
+        /**
+         * Change the requested period, from the next run on
+         *
+         * @param period period in milliseconds, clamped to [{@link #MIN_PERIOD}, {@link #MAX_PERIOD}]
+         */
+        public void setPeriod(long period) {
+            this.period = clampPeriod(period);
+            this.effectivePeriod = this.period;
+        }
+
+        /**
+         * @return the period currently used, which is longer than the requested one while backing off
+         */
+        public long getEffectivePeriod() {
+            return effectivePeriod;
+        }
+
+        /**
+         * @return the requested rate in runs per second
+         */
+        public double getRequestedRate() {
+            return 1000. / period;
+        }
+
+        /**
+         * @return the rate actually achieved since the first run, in runs per second
+         */
+        public double getEffectiveRate() {
+            long count = runs.get();
+            long span = lastStart - firstStart;
+            return count < 2 || span <= 0 ? 0 : (count - 1) * 1e9 / span;
+        }
+
+        /**
+         * @return average wall time of a run in milliseconds
+         */
+        public double getAverageMillis() {
+            long count = runs.get();
+            return count == 0 ? 0 : totalNanos.get() / 1e6 / count;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        public long getRuns() {
+            return runs.get();
+        }
+
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        private double getTotalMillis() {
+            return totalNanos.get() / 1e6;
+        }
+    }
+
+    private void resizeWorkers() {
+        workers.resize(groups.size() * GROUP_IN_FLIGHT_LIMIT + 1);
+    }
+
+    private static long clampPeriod(long period) {
+        return Math.max(MIN_PERIOD, Math.min(MAX_PERIOD, period));
+    }
+
+    private SamplingScheduler() {
+        timer = Executors.newSingleThreadScheduledExecutor(PerfExecutors.namedThreadFactory("perf-timer"));
+        workers = PerfExecutors.newWorkers();
+        timer.scheduleAtFixedRate(() -> {
+            if (!tasks.isEmpty())
+                LOGGER.debug(report());
+        }, REPORT_PERIOD, REPORT_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized SamplingScheduler getInstance() {
+        if (instance == null)
+            instance = new SamplingScheduler();
+        return instance;
+    }
+
+    /**
+     * Register a periodic task, replacing any task registered under the same name
+     *
+     * @param name         unique task name, e.g. "serial/FPS/update"
+     * @param runnable     the work
+     * @param initialDelay delay of the first run in milliseconds
+     * @param period       requested period in milliseconds, within [{@link #MIN_PERIOD}, {@link #MAX_PERIOD}]
+     * @return the task handle
+     */
+    public Task register(String name, Runnable runnable, long initialDelay, long period) {
+        Task task = new Task(name, runnable, period);
+        Task previous = tasks.put(name, task);
+        if (previous != null)
+            previous.cancel();
+        task.nextRun = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelay);
+        task.tick = timer.schedule(task::onTick, initialDelay, TimeUnit.MILLISECONDS);
+        if (task.cancelled)
+            task.tick.cancel(false);
+        return task;
+    }
+
+    /**
+     * Cancel all tasks whose name starts with the prefix, e.g. all tasks of a device
+     *
+     * @param prefix task name prefix
+     */
+    public void cancelAll(String prefix) {
+        for (Task task : new ArrayList<>(tasks.values())) {
+            if (task.name.startsWith(prefix))
+                task.cancel();
+        }
+    }
+
+    public List<Task> getTasks() {
+        return new ArrayList<>(tasks.values());
+    }
+
+    /**
+     * @return the wall time consumed by every task, the most expensive first
+     */
+    public String report() {
+        List<Task> sorted = getTasks();
+        sorted.sort(Comparator.comparingDouble(Task::getTotalMillis).reversed());
+        StringBuilder builder = new StringBuilder(String.format("Sampling scheduler: %d tasks, %d workers (max %d)", sorted.size(), workers.getSize(), workers.getMaxSize()));
+        for (Task task : sorted) {
+            builder.append(String.format("%n  %-40s period=%5dms effective=%5dms rate=%6.2f/%6.2fHz runs=%6d avg=%8.2fms max=%8.2fms load=%5.1f%% skipped=%d",
+                    task.name, task.period, task.effectivePeriod, task.getEffectiveRate(), task.getRequestedRate(),
+                    task.getRuns(), task.getAverageMillis(), task.getMaxMillis(),
+                    task.getAverageMillis() * 100 / task.effectivePeriod, task.getSkipped()));
+        }
+        return builder.toString();
+    }
+
+    public void shutdown() {
+        LOGGER.info(report());
+        for (Task task : getTasks()) {
+            task.cancel();
+        }
+        timer.shutdownNow();
+        workers.shutdown();
+        synchronized (SamplingScheduler.class) {
+            instance = null;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small pool of concurrent connections to AndroidPerfServer through the forwarded local port,
+ * so that a slow request (e.g. latency of a busy layer) does not hold back the others.
+ *
+ * <p>Connections are put back after a complete reply and reused as long as the server keeps
+ * them open. If a reused connection turns out to be closed by the server (end of stream or
+ * reset), the request is retried on a new connection and reuse is switched off for this pool.
+ * A reply that does not arrive in time only costs its connection.</p>
+ */
+class ServerConnectionPool implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(ServerConnectionPool.class);
+
+    private final int port;
+    private final int timeout;
+    private final PerfReply.Decoder decoder;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Socket> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean reuseConnections = true;
+    private volatile boolean closed = false;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+
+    /**
+     * @param port           local port forwarded to the server's socket
+     * @param maxConnections maximum number of requests in flight
+     * @param timeout        per-request timeout in milliseconds, for both waiting in the queue and reading
+     * @param decoder        reply decoder
+     */
+    ServerConnectionPool(int port, int maxConnections, int timeout, PerfReply.Decoder decoder) {
+        this.port = port;
+        this.timeout = timeout;
+        this.decoder = decoder;
+        permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Send a message and wait for its reply
+     *
+     * @param msg the message, terminator included
+     * @return the reply, {@link PerfReply#EMPTY} if the server closed the connection without one
+     * @throws TimeoutException if no connection became available or no reply arrived within the timeout
+     * @throws IOException      if the server is unreachable
+     */
+    PerfReply request(byte[] msg) throws IOException, TimeoutException, InterruptedException {
+        long queueStart = System.nanoTime();
+        if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+            throw new TimeoutException(String.format("No server connection available after %d ms", timeout));
+        long queueNanos = System.nanoTime() - queueStart;
+        recordQueueTime(queueNanos);
+        try {
+            Socket socket = reuseConnections ? idle.pollFirst() : null;
+            if (socket != null) {
+                PerfReply reply = null;
+                try {
+                    reply = send(socket, msg);
+                } catch (SocketTimeoutException e) {
+                    // a slow reply, not a closed connection
+                    closeQuietly(socket);
+                    throw timedOut();
+                } catch (IOException e) {
+                    LOGGER.debug("Reused server connection failed: " + e.getMessage());
+                }
+                if (reply != null && reply != PerfReply.EMPTY) {
+                    release(socket);
+                    reply.setQueueNanos(queueNanos);
+                    return reply;
+                }
+                // the server closed the connection after the previous reply, don't try again
+                closeQuietly(socket);
+                reuseConnections = false;
+            }
+
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            PerfReply reply;
+            try {
+                reply = send(socket, msg);
+            } catch (SocketTimeoutException e) {
+                closeQuietly(socket);
+                throw timedOut();
+            } catch (IOException e) {
+                closeQuietly(socket);
+                throw e;
+            }
+            if (reply == PerfReply.EMPTY) {
+                closeQuietly(socket);
+            } else {
+                release(socket);
+                reply.setQueueNanos(queueNanos);
+            }
+            return reply;
+        } finally {
+            permits.release();
+        }
+    }
+
+    private PerfReply send(Socket socket, byte[] msg) throws IOException {
+        socket.setSoTimeout(timeout);
+        OutputStream outputStream = socket.getOutputStream();
+        outputStream.write(msg);
+        outputStream.flush();
+        return decoder.read(socket.getInputStream());
+    }
+
+    private TimeoutException timedOut() {
+        return new TimeoutException(String.format("No server reply after %d ms", timeout));
+    }
+
+    private void release(Socket socket) {
+        if (reuseConnections && !closed)
+            idle.addFirst(socket);
+        else
+            closeQuietly(socket);
+    }
+
+    private void recordQueueTime(long nanos) {
+        requestCount.incrementAndGet();
+        totalQueueNanos.addAndGet(nanos);
+        maxQueueNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return average time requests spent waiting for a connection, in milliseconds
+     */
+    double getAverageQueueMillis() {
+        long count = requestCount.get();
+        return count == 0 ? 0 : totalQueueNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * @return longest time a request spent waiting for a connection, in milliseconds
+     */
+    double getMaxQueueMillis() {
+        return maxQueueNanos.get() / 1e6;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket socket;
+        while ((socket = idle.pollFirst()) != null) {
+            closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ServerConnectionPool[%d] requests=%d avgQueue=%.2fms maxQueue=%.2fms reuse=%b",
+                port, getRequestCount(), getAverageQueueMillis(), getMaxQueueMillis(), reuseConnections);
+    }
+}
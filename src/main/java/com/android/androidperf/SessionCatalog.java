@@ -0,0 +1,322 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Index of the recorded sessions of a directory, to find sessions without opening them.
+ *
+ * <p>Every session is described by a flat set of fields: serial, model, sdk, package, start
+ * (epoch milliseconds), duration (seconds), the device properties under their own names
+ * (e.g. "CPU Model"), and min/max/avg/count of every series, e.g. "FPS/FPS.avg". The index
+ * lives in memory and in an append-only file next to the recordings, one line per session.
+ * Recorders add their session when they close; recordings that land in the directory by
+ * other means, e.g. copied from a CI agent, are picked up by {@link #indexNewRecordings()}.</p>
+ */
+public class SessionCatalog {
+    private static final Logger LOGGER = LogManager.getLogger(SessionCatalog.class);
+    static final String FILE_NAME = "catalog.idx";
+    private static final HashMap<Path, SessionCatalog> catalogs = new HashMap<>();
+    private static final Pattern conditionPattern = Pattern.compile("\\s*(.+?)\\s*(!=|<=|>=|=|<|>|~)\\s*(.*?)\\s*");
+
+    private final Path directory;
+    private final Path indexPath;
+    private final LinkedHashMap<String, Map<String, String>> entries = new LinkedHashMap<>();
+
+    private SessionCatalog(Path directory) {
+        this.directory = directory;
+        this.indexPath = directory.resolve(FILE_NAME);
+    }
+
+    /**
+     * @param directory directory of the recordings
+     * @return the catalog of the directory, loaded on first use
+     */
+    public static SessionCatalog open(Path directory) {
+        Path key = directory.toAbsolutePath().normalize();
+        synchronized (catalogs) {
+            SessionCatalog catalog = catalogs.get(key);
+            if (catalog == null) {
+                catalog = new SessionCatalog(key);
+                catalog.load();
+                catalogs.put(key, catalog);
+            }
+            return catalog;
+        }
+    }
+
+    private synchronized void load() {
+        if (!Files.exists(indexPath))
+            return;
+        try {
+            String text = Files.readString(indexPath, StandardCharsets.UTF_8);
+            // a line cut short by a crash has no newline yet and is skipped, see truncatePartialLine
+            int end = text.lastIndexOf('\n');
+            if (end < text.length() - 1)
+                LOGGER.warn(String.format("Skipping an incomplete line at the end of %s", indexPath));
+            for (String line : text.substring(0, end + 1).split("\n")) {
+                if (line.isEmpty())
+                    continue;
+                Map<String, String> entry = decode(line);
+                if (entry != null && entry.containsKey("path"))
+                    entries.put(entry.get("path"), entry);
+            }
+        } catch (IOException e) {
+            LOGGER.error(String.format("Cannot read session catalog %s", indexPath), e);
+        }
+    }
+
+    /**
+     * Index the recordings of the directory that are not in the catalog yet
+     */
+    public void indexNewRecordings() {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(p -> p.getFileName().toString().endsWith(RecordingFormat.FILE_EXTENSION))
+                    .sorted().collect(Collectors.toList());
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            LOGGER.error(String.format("Cannot list recordings in %s", directory), e);
+            return;
+        }
+        int count = 0;
+        for (Path file : files) {
+            synchronized (this) {
+                if (entries.containsKey(file.getFileName().toString()))
+                    continue;
+            }
+            try (RecordingReader reader = new RecordingReader(file)) {
+                LinkedHashMap<String, double[]> stats = new LinkedHashMap<>();
+                for (String name : reader.listSeries()) {
+                    int separator = name.indexOf('/');
+                    var aggregate = reader.aggregate(name.substring(0, separator), name.substring(separator + 1), Long.MIN_VALUE, Long.MAX_VALUE);
+                    stats.put(name, new double[]{aggregate.count, aggregate.min, aggregate.max, aggregate.sum});
+                }
+                add(file, reader.getMeta(), stats, reader.getEndTime() / 1e6);
+                count++;
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Cannot index recording %s: %s", file, e.getMessage()));
+            }
+        }
+        if (count > 0)
+            LOGGER.info(String.format("Indexed %d new recordings in %s", count, directory));
+    }
+
+    /**
+     * Add or replace a session
+     *
+     * @param recording the recording file, within the directory of the catalog
+     * @param meta      metadata of the session, as written by {@link SessionRecorder}
+     * @param stats     count, min, max and sum of every series, keyed "service/series"
+     * @param duration  length of the session in seconds
+     */
+    public synchronized void add(Path recording, Map<String, String> meta, Map<String, double[]> stats, double duration) {
+        LinkedHashMap<String, String> entry = new LinkedHashMap<>();
+        entry.put("path", recording.getFileName().toString());
+        entry.put("serial", meta.getOrDefault("serial", ""));
+        entry.put("model", meta.getOrDefault("Name", ""));
+        entry.put("sdk", meta.getOrDefault("SDK Version", ""));
+        entry.put("package", meta.getOrDefault("package", ""));
+        entry.put("start", meta.getOrDefault("start", "0"));
+        entry.put("duration", String.format(Locale.ROOT, "%.3f", duration));
+        meta.forEach(entry::putIfAbsent);
+        stats.forEach((name, values) -> {
+            long count = (long) values[0];
+            entry.put(name + ".count", String.valueOf(count));
+            if (count > 0) {
+                entry.put(name + ".min", String.format(Locale.ROOT, "%.3f", values[1]));
+                entry.put(name + ".max", String.format(Locale.ROOT, "%.3f", values[2]));
+                entry.put(name + ".avg", String.format(Locale.ROOT, "%.3f", values[3] / count));
+            }
+        });
+        entries.put(entry.get("path"), entry);
+        try {
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.position(truncatePartialLine(channel));
+                channel.write(StandardCharsets.UTF_8.encode(encode(entry) + "\n"));
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            LOGGER.error(String.format("Cannot update session catalog %s", indexPath), e);
+        }
+    }
+
+    /**
+     * Cut off a line left without its newline by a crash, so that the next line is not joined onto it
+     *
+     * @return the size of the file, which ends with a complete line
+     */
+    private static long truncatePartialLine(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long end = size;
+        while (end > 0) {
+            long start = Math.max(0, end - buffer.capacity());
+            buffer.clear().limit((int) (end - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    long complete = start + i + 1;
+                    if (complete < size)
+                        channel.truncate(complete);
+                    return complete;
+                }
+            }
+            end = start;
+        }
+        if (size > 0)
+            channel.truncate(0);
+        return 0;
+    }
+
+    /**
+     * @param filter condition on the fields of a session
+     * @return the matching sessions, oldest first
+     */
+    public synchronized List<Map<String, String>> find(Predicate<Map<String, String>> filter) {
+        return entries.values().stream().filter(filter)
+                .sorted(Comparator.comparingLong(entry -> parseLong(entry.get("start"))))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param conditions conditions of the form "field op value", op being one of = != &lt; &lt;= &gt; &gt;= ~,
+     *                   where ~ tests that the field contains the value, e.g. "FPS/FPS.avg &lt; 50"
+     * @return the sessions that match all conditions
+     */
+    public List<Map<String, String>> find(List<String> conditions) {
+        Predicate<Map<String, String>> filter = entry -> true;
+        for (String condition : conditions) {
+            filter = filter.and(parseCondition(condition));
+        }
+        return find(filter);
+    }
+
+    static Predicate<Map<String, String>> parseCondition(String condition) {
+        Matcher matcher = conditionPattern.matcher(condition);
+        if (!matcher.matches())
+            throw new IllegalArgumentException("Invalid condition " + condition);
+        String field = matcher.group(1);
+        String op = matcher.group(2);
+        String value = matcher.group(3);
+        Double number = parseDouble(value);
+        return entry -> {
+            String actual = entry.get(field);
+            if (actual == null)
+                return false;
+            Double actualNumber = parseDouble(actual);
+            // numbers are compared as numbers when both sides are numeric, e.g. the SDK version
+            int compare = number != null && actualNumber != null ? Double.compare(actualNumber, number) : actual.compareTo(value);
+            switch (op) {
+                case "=": return compare == 0;
+                case "!=": return compare != 0;
+                case "<": return compare < 0;
+                case "<=": return compare <= 0;
+                case ">": return compare > 0;
+                case ">=": return compare >= 0;
+                default: return actual.contains(value);
+            }
+        };
+    }
+
+    private static Double parseDouble(String s) {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException | NullPointerException e) {
+            return 0;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * One line of tab-separated key=value fields, with \, tab, newline and = escaped
+     */
+    static String encode(Map<String, String> entry) {
+        StringBuilder builder = new StringBuilder();
+        entry.forEach((key, value) -> {
+            if (builder.length() > 0)
+                builder.append('\t');
+            escape(builder, key);
+            builder.append('=');
+            escape(builder, value);
+        });
+        return builder.toString();
+    }
+
+    private static void escape(StringBuilder builder, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\': builder.append("\\\\"); break;
+                case '\t': builder.append("\\t"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '=': builder.append("\\e"); break;
+                default: builder.append(c);
+            }
+        }
+    }
+
+    static Map<String, String> decode(String line) {
+        LinkedHashMap<String, String> entry = new LinkedHashMap<>();
+        for (String field : line.split("\t")) {
+            int separator = field.indexOf('=');
+            if (separator < 0)
+                return null;
+            entry.put(unescape(field.substring(0, separator)), unescape(field.substring(separator + 1)));
+        }
+        return entry;
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0)
+            return s;
+        StringBuilder builder = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                builder.append(c);
+                continue;
+            }
+            char next = s.charAt(++i);
+            switch (next) {
+                case 't': builder.append('\t'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 'e': builder.append('='); break;
+                default: builder.append(next);
+            }
+        }
+        return builder.toString();
+    }
+}
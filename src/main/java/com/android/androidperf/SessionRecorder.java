@@ -0,0 +1,334 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Records every sample of a session to disk as it is taken, see {@link RecordingFormat}.
+ *
+ * <p>Samples are collected into an in-memory chunk, which is sealed after
+ * {@link #CHUNK_MAX_VALUES} values or {@link #CHUNK_MAX_MICROS} of session time. Sealed chunks
+ * are encoded, written and fsync'd by a background thread shared by all recorders, so the
+ * sampling threads never wait for the disk, and a crash loses at most the chunk being filled.</p>
+ */
+public class SessionRecorder implements SampleSink, Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(SessionRecorder.class);
+    static final int CHUNK_MAX_VALUES = 8192;
+    static final long CHUNK_MAX_MICROS = 10_000_000;
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(PerfExecutors.namedThreadFactory("perf-recorder"));
+
+    private final Path path;
+    private final Map<String, String> meta;
+    private final FileChannel channel;
+    // guarded by this
+    private ChunkBuilder current = new ChunkBuilder();
+    private int chunkCount = 0;
+    private boolean closed = false;
+    // only touched by the writer thread
+    private long position;
+    private final ArrayList<long[]> index = new ArrayList<>();
+    private long valueCount = 0;
+    private long endTime = 0;
+    private final LinkedHashMap<String, double[]> stats = new LinkedHashMap<>();
+    private IOException failure = null;
+
+    /**
+     * Create the recording file and write its header
+     *
+     * @param path the new file
+     * @param meta properties of the session, e.g. device and package
+     * @throws IOException if the file cannot be created
+     */
+    public SessionRecorder(Path path, Map<String, String> meta) throws IOException {
+        this.path = path;
+        this.meta = new LinkedHashMap<>(meta);
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        int size = 16;
+        ArrayList<byte[]> fields = new ArrayList<>();
+        for (var entry : meta.entrySet()) {
+            fields.add(RecordingFormat.utf8(entry.getKey()));
+            fields.add(RecordingFormat.utf8(entry.getValue() == null ? "" : entry.getValue()));
+        }
+        for (byte[] field : fields)
+            size += RecordingFormat.stringSize(field);
+        ByteBuffer metaBuffer = RecordingFormat.allocate(size);
+        RecordingFormat.putVarLong(metaBuffer, meta.size());
+        fields.forEach(field -> RecordingFormat.putString(metaBuffer, field));
+        metaBuffer.flip();
+
+        ByteBuffer header = RecordingFormat.allocate(metaBuffer.remaining() + 16);
+        header.put(RecordingFormat.MAGIC).put((byte) RecordingFormat.VERSION);
+        RecordingFormat.putVarLong(header, metaBuffer.remaining());
+        header.put(metaBuffer).flip();
+        writeFully(header);
+        channel.force(true);
+    }
+
+    /**
+     * @param directory directory of the recordings
+     * @param serial    device serial
+     * @return a new file name of the form serial-yyyyMMdd-HHmmss.aprf
+     */
+    static Path newRecordingPath(Path directory, String serial) {
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        String name = serial.replaceAll("[^\\w.-]", "_") + "-" + time;
+        Path path = directory.resolve(name + RecordingFormat.FILE_EXTENSION);
+        for (int i = 1; Files.exists(path); i++)
+            path = directory.resolve(name + "-" + i + RecordingFormat.FILE_EXTENSION);
+        return path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void onSample(String serviceName, double time, Map<String, Double> values) {
+        long micros = Math.round(time * 1e6);
+        synchronized (this) {
+            if (closed)
+                return;
+            values.forEach((series, value) -> current.add(serviceName, series, RecordingFormat.KIND_SAMPLE, micros, value));
+            sealIfFull(micros);
+        }
+    }
+
+    @Override
+    public void onSeries(String serviceName, String series, double[] times, double[] values) {
+        synchronized (this) {
+            if (closed)
+                return;
+            long micros = 0;
+            for (int i = 0; i < values.length; i++) {
+                micros = Math.round(times[i] * 1e6);
+                current.add(serviceName, series, RecordingFormat.KIND_BATCH, micros, values[i]);
+            }
+            sealIfFull(micros);
+        }
+    }
+
+    private void sealIfFull(long time) {
+        if (current.valueCount >= CHUNK_MAX_VALUES || time - current.firstTime >= CHUNK_MAX_MICROS)
+            seal();
+    }
+
+    private void seal() {
+        if (current.valueCount == 0)
+            return;
+        ChunkBuilder chunk = current;
+        int chunkIndex = chunkCount++;
+        current = new ChunkBuilder();
+        writer.execute(() -> writeChunk(chunk, chunkIndex));
+    }
+
+    private void writeChunk(ChunkBuilder chunk, int chunkIndex) {
+        if (failure != null)
+            return;
+        ByteBuffer payload = chunk.encode(chunkIndex);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer header = RecordingFormat.allocate(RecordingFormat.CHUNK_HEADER_SIZE);
+        header.put(RecordingFormat.CHUNK).putInt(payload.remaining()).putInt((int) crc.getValue()).flip();
+        try {
+            long offset = position;
+            writeFully(header);
+            writeFully(payload);
+            channel.force(false);
+            index.add(new long[]{offset, chunk.firstTime, chunk.lastTime});
+            valueCount += chunk.valueCount;
+            endTime = Math.max(endTime, chunk.lastTime);
+            chunk.columns.values().forEach(column -> column.addTo(stats));
+        } catch (IOException e) {
+            failure = e;
+            LOGGER.error(String.format("Cannot write recording %s, recording stopped", path), e);
+        }
+    }
+
+    private void writeFooter() {
+        if (failure != null)
+            return;
+        ByteBuffer footer = RecordingFormat.allocate(5 + index.size() * RecordingFormat.FOOTER_ENTRY_SIZE + RecordingFormat.TRAILER_SIZE);
+        long footerOffset = position;
+        footer.put(RecordingFormat.FOOTER).putInt(index.size());
+        for (long[] entry : index) {
+            footer.putLong(entry[0]).putLong(entry[1]).putLong(entry[2]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(footer.array(), 0, footer.position());
+        footer.putLong(footerOffset).putInt((int) crc.getValue()).put(RecordingFormat.END_MAGIC).flip();
+        try {
+            writeFully(footer);
+            channel.force(true);
+        } catch (IOException e) {
+            failure = e;
+            LOGGER.error(String.format("Cannot write the footer of recording %s", path), e);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Write the pending samples and the footer, close the file and add the session to the
+     * {@link SessionCatalog} of its directory. Waits for the disk.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            seal();
+        }
+        try {
+            writer.submit(() -> {
+                writeFooter();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.error(e);
+                }
+                LOGGER.info(String.format("Recorded %d values in %d chunks, %d bytes to %s", valueCount, index.size(), position, path));
+                if (failure == null)
+                    SessionCatalog.open(path.toAbsolutePath().getParent()).add(path, meta, stats, endTime / 1e6);
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.error(e);
+        }
+    }
+
+    /**
+     * The samples of a chunk being filled, stored column by column
+     */
+    private static class ChunkBuilder {
+        private final LinkedHashMap<String, Column> columns = new LinkedHashMap<>();
+        private long firstTime = Long.MAX_VALUE;
+        private long lastTime = Long.MIN_VALUE;
+        private int valueCount = 0;
+
+        void add(String service, String series, byte kind, long time, double value) {
+            String key = service + '\0' + series + '\0' + kind;
+            Column column = columns.get(key);
+            if (column == null) {
+                column = new Column(service, series, kind);
+                columns.put(key, column);
+            }
+            column.add(time, (float) value);
+            firstTime = Math.min(firstTime, time);
+            lastTime = Math.max(lastTime, time);
+            valueCount++;
+        }
+
+        ByteBuffer encode(int chunkIndex) {
+            int size = 32;
+            for (Column column : columns.values())
+                size += column.encodedSizeBound();
+            ByteBuffer buffer = RecordingFormat.allocate(size);
+            RecordingFormat.putVarLong(buffer, chunkIndex);
+            buffer.putLong(firstTime).putLong(lastTime);
+            RecordingFormat.putVarLong(buffer, columns.size());
+
+            ArrayList<ByteBuffer> encoded = new ArrayList<>();
+            for (Column column : columns.values()) {
+                ByteBuffer data = column.encodeColumn(firstTime);
+                encoded.add(data);
+                column.encodeSummary(buffer, data.remaining());
+            }
+            encoded.forEach(buffer::put);
+            return buffer.flip();
+        }
+    }
+
+    private static class Column {
+        private final byte[] service;
+        private final byte[] series;
+        private final byte kind;
+        private long[] times = new long[64];
+        private float[] values = new float[64];
+        private int count = 0;
+        private float min = Float.POSITIVE_INFINITY;
+        private float max = Float.NEGATIVE_INFINITY;
+        private double sum = 0;
+
+        Column(String service, String series, byte kind) {
+            this.service = RecordingFormat.utf8(service);
+            this.series = RecordingFormat.utf8(series);
+            this.kind = kind;
+        }
+
+        void add(long time, float value) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            times[count] = time;
+            values[count] = value;
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+
+        /**
+         * Merge count, min, max and sum of the column into the session statistics
+         */
+        void addTo(Map<String, double[]> stats) {
+            String name = new String(service, StandardCharsets.UTF_8) + "/" + new String(series, StandardCharsets.UTF_8);
+            double[] total = stats.computeIfAbsent(name, k -> new double[]{0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0});
+            total[0] += count;
+            total[1] = Math.min(total[1], min);
+            total[2] = Math.max(total[2], max);
+            total[3] += sum;
+        }
+
+        int encodedSizeBound() {
+            return RecordingFormat.stringSize(service) + RecordingFormat.stringSize(series) + 31 + count * 14;
+        }
+
+        void encodeSummary(ByteBuffer buffer, int columnLength) {
+            RecordingFormat.putString(buffer, service);
+            RecordingFormat.putString(buffer, series);
+            buffer.put(kind);
+            RecordingFormat.putVarLong(buffer, count);
+            buffer.putFloat(min).putFloat(max).putDouble(sum);
+            RecordingFormat.putVarLong(buffer, columnLength);
+        }
+
+        ByteBuffer encodeColumn(long chunkFirstTime) {
+            ByteBuffer buffer = RecordingFormat.allocate(count * 14 + 10);
+            RecordingFormat.putVarLong(buffer, RecordingFormat.zigzag(times[0] - chunkFirstTime));
+            for (int i = 1; i < count; i++) {
+                // samples of a series arrive in order, apart from rare overlaps of frame batches
+                RecordingFormat.putVarLong(buffer, RecordingFormat.zigzag(times[i] - times[i - 1]));
+            }
+            for (int i = 0; i < count; i++) {
+                buffer.putFloat(values[i]);
+            }
+            return buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Plays a recorded session back into a {@link SampleSink}, as if the samples were taken live.
+ *
+ * <p>Chunks are decoded one at a time as the playback reaches them, so the memory used does not
+ * depend on the length of the session. The playback clock is advanced by a task of the
+ * {@link SamplingScheduler}, at 1x to 100x the recorded speed.</p>
+ */
+public class SessionReplayer implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(SessionReplayer.class);
+    private static final long TICK_PERIOD = 50;
+    // after a jump the chart shows this much history before the new position
+    static final double SEEK_HISTORY = 120;
+    static final double MIN_SPEED = 1;
+    static final double MAX_SPEED = 100;
+
+    /**
+     * Notified of the playback position, on the playback thread
+     */
+    public interface Listener {
+        /**
+         * @param position seconds since the start of the session
+         * @param playing  false once paused or at the end of the session
+         */
+        void onPosition(double position, boolean playing);
+
+        /**
+         * Everything the sink received so far should be discarded, e.g. before a jump
+         */
+        void onReset();
+    }
+
+    /**
+     * The values of one service at one time, as handed to a sink
+     */
+    private static class Event {
+        final long time;
+        final String service;
+        final String series;
+        final byte kind;
+        final double value;
+
+        Event(long time, String service, String series, byte kind, double value) {
+            this.time = time;
+            this.service = service;
+            this.series = series;
+            this.kind = kind;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The values of one batch series gathered by one call of {@link #emitUntil(long)}
+     */
+    private static class Batch {
+        final String service;
+        final String series;
+        double[] times = new double[64];
+        double[] values = new double[64];
+        int count = 0;
+
+        Batch(String service, String series) {
+            this.service = service;
+            this.series = series;
+        }
+
+        void add(double time, double value) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            times[count] = time;
+            values[count] = value;
+            count++;
+        }
+    }
+
+    private final RecordingReader reader;
+    private final SampleSink sink;
+    private final Listener listener;
+    private final SamplingScheduler.Task task;
+    private volatile double speed = 1;
+    private volatile boolean playing = false;
+    private volatile double seekTarget = -1;
+
+    // only touched by the playback task
+    private double position = 0;
+    private long lastTick = 0;
+    private int nextChunk = 0;
+    private final ArrayDeque<Event> pending = new ArrayDeque<>();
+
+    /**
+     * @param name     unique name of the playback, used for its scheduler task
+     * @param reader   the recording
+     * @param sink     receiver of the samples
+     * @param listener receiver of the position
+     */
+    public SessionReplayer(String name, RecordingReader reader, SampleSink sink, Listener listener) {
+        this.reader = reader;
+        this.sink = sink;
+        this.listener = listener;
+        position = reader.getStartTime() / 1e6;
+        task = SamplingScheduler.getInstance().register("replay/" + name, this::tick, 0, TICK_PERIOD);
+    }
+
+    /**
+     * @return length of the session in seconds
+     */
+    public double getDuration() {
+        return reader.getEndTime() / 1e6;
+    }
+
+    public void play() {
+        playing = true;
+    }
+
+    public void pause() {
+        playing = false;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    /**
+     * @param speed playback speed, within [1, 100] times the recorded speed
+     */
+    public void setSpeed(double speed) {
+        this.speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Jump to a time, the sink is reset and gets the last {@link #SEEK_HISTORY} seconds before it
+     *
+     * @param seconds seconds since the start of the session
+     */
+    public void seek(double seconds) {
+        seekTarget = Math.max(0, Math.min(getDuration(), seconds));
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        double elapsed = lastTick == 0 ? 0 : (now - lastTick) / 1e9;
+        lastTick = now;
+        try {
+            double target = seekTarget;
+            if (target >= 0) {
+                seekTarget = -1;
+                listener.onReset();
+                pending.clear();
+                double from = Math.max(0, target - SEEK_HISTORY);
+                nextChunk = reader.findChunk((long) (from * 1e6));
+                skipUntil((long) (from * 1e6));
+                position = target;
+                emitUntil((long) (position * 1e6));
+            } else if (playing) {
+                position = Math.min(getDuration(), position + elapsed * speed);
+                if (!emitUntil((long) (position * 1e6)))
+                    playing = false;
+            }
+        } catch (IOException e) {
+            LOGGER.error(String.format("Cannot replay %s", reader.getPath()), e);
+            playing = false;
+        }
+        listener.onPosition(position, playing);
+    }
+
+    private boolean fillPending() throws IOException {
+        while (pending.isEmpty()) {
+            if (nextChunk >= reader.getChunkCount())
+                return false;
+            RecordingReader.Chunk chunk = reader.readChunk(nextChunk++);
+            ArrayList<Event> events = new ArrayList<>();
+            for (RecordingReader.Series series : chunk.series) {
+                long[] times = series.getTimes();
+                float[] values = series.getValues();
+                for (int i = 0; i < series.count; i++) {
+                    events.add(new Event(times[i], series.service, series.name, series.kind, values[i]));
+                }
+            }
+            // stable, so the series of a sample keep their recorded order
+            events.sort(Comparator.comparingLong(e -> e.time));
+            pending.addAll(events);
+        }
+        return true;
+    }
+
+    private void skipUntil(long time) throws IOException {
+        while (fillPending() && pending.peekFirst().time < time) {
+            pending.pollFirst();
+        }
+    }
+
+    /**
+     * Hand every event up to the time to the sink, grouping the values of a service
+     * taken at the same time into one sample, and the values of a batch series into one batch
+     *
+     * @return false at the end of the recording
+     */
+    private boolean emitUntil(long time) throws IOException {
+        LinkedHashMap<String, Batch> batches = new LinkedHashMap<>();
+        try {
+            return emitSamplesUntil(time, batches);
+        } finally {
+            batches.values().forEach(batch -> sink.onSeries(batch.service, batch.series,
+                    Arrays.copyOf(batch.times, batch.count), Arrays.copyOf(batch.values, batch.count)));
+        }
+    }
+
+    private boolean emitSamplesUntil(long time, Map<String, Batch> batches) throws IOException {
+        while (fillPending()) {
+            Event first = pending.peekFirst();
+            if (first.time > time)
+                return true;
+            pending.pollFirst();
+            if (first.kind == RecordingFormat.KIND_BATCH) {
+                batches.computeIfAbsent(first.service + '/' + first.series, k -> new Batch(first.service, first.series))
+                        .add(first.time / 1e6, first.value);
+                continue;
+            }
+            LinkedHashMap<String, Double> values = new LinkedHashMap<>();
+            values.put(first.series, first.value);
+            Event next;
+            while ((next = pending.peekFirst()) != null && next.time == first.time
+                    && next.kind == RecordingFormat.KIND_SAMPLE && next.service.equals(first.service)) {
+                values.put(next.series, next.value);
+                pending.pollFirst();
+            }
+            sink.onSample(first.service, first.time / 1e6, values);
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        task.cancel();
+        try {
+            reader.close();
+        } catch (IOException e) {
+            LOGGER.error(e);
+        }
+    }
+}
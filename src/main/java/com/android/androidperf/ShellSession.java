@@ -0,0 +1,166 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import se.vidstige.jadb.ExecStream;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One long-lived shell on the device that runs commands one after another,
+ * so that each command no longer forks a new shell and sets up a new adbd stream.
+ *
+ * <p>Every command is framed by unique begin/end sentinels, the end sentinel carrying
+ * the command's exit code:</p>
+ * <pre>
+ * echo __APERF_x_1_B__
+ * { cmd
+ * } &lt;/dev/null 2&gt;&amp;1; printf '\n%s %d\n' __APERF_x_1_E__ $?
+ * </pre>
+ * Callers are queued in arrival order. Once the stream fails or times out the session is
+ * closed and {@link #exec} throws, and the caller is expected to fall back to a per-command exec.
+ */
+class ShellSession implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(ShellSession.class);
+    private static final int DEFAULT_TIMEOUT = 15000;
+    private static final long REOPEN_DELAY = 5000;
+
+    private final JadbDevice jadbDevice;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final String sentinelPrefix;
+    private ExecStream stream = null;
+    private InputStream inputStream = null;
+    private OutputStream outputStream = null;
+    private long sequence = 0;
+    private long reopenAfter = 0;
+
+    static class Result {
+        final String output;
+        final int exitCode;
+
+        Result(String output, int exitCode) {
+            this.output = output;
+            this.exitCode = exitCode;
+        }
+    }
+
+    ShellSession(JadbDevice device) {
+        jadbDevice = device;
+        sentinelPrefix = String.format("__APERF_%08x_", ThreadLocalRandom.current().nextInt());
+    }
+
+    /**
+     * Run a command on the session shell
+     *
+     * @param cmdLine the full command line
+     * @return output (stdout and stderr) and exit code of the command
+     * @throws IOException if the session is unavailable, it is closed in that case
+     */
+    Result exec(String cmdLine) throws IOException {
+        lock.lock();
+        try {
+            open();
+            long id = ++sequence;
+            String begin = sentinelPrefix + id + "_B__";
+            String end = sentinelPrefix + id + "_E__";
+            String framed = String.format("echo %s\n{ %s\n} </dev/null 2>&1; printf '\\n%%s %%d\\n' %s $?\n", begin, cmdLine, end);
+            try {
+                outputStream.write(framed.getBytes(StandardCharsets.UTF_8));
+                outputStream.flush();
+                return readResult(begin, end);
+            } catch (IOException e) {
+                closeStream();
+                reopenAfter = System.currentTimeMillis() + REOPEN_DELAY;
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open() throws IOException {
+        if (stream != null)
+            return;
+        if (System.currentTimeMillis() < reopenAfter)
+            throw new IOException("Shell session is down");
+        try {
+            stream = jadbDevice.executeInteractive("sh");
+            stream.setTimeout(DEFAULT_TIMEOUT);
+            inputStream = new BufferedInputStream(stream.getInputStream());
+            outputStream = new BufferedOutputStream(stream.getOutputStream());
+            LOGGER.debug(String.format("Shell session opened on %s", jadbDevice.getSerial()));
+        } catch (IOException | JadbException e) {
+            closeStream();
+            reopenAfter = System.currentTimeMillis() + REOPEN_DELAY;
+            throw new IOException("Cannot open shell session", e);
+        }
+    }
+
+    private Result readResult(String begin, String end) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        // skip anything left over before our begin sentinel
+        do {
+            readLine(line);
+        } while (!line.toString(StandardCharsets.UTF_8).equals(begin));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+        String endPrefix = end + " ";
+        while (true) {
+            readLine(line);
+            if (line.size() >= endPrefix.length()) {
+                String str = line.toString(StandardCharsets.UTF_8);
+                if (str.startsWith(endPrefix)) {
+                    int exitCode;
+                    try {
+                        exitCode = Integer.parseInt(str.substring(endPrefix.length()).strip());
+                    } catch (NumberFormatException e) {
+                        exitCode = -1;
+                    }
+                    // drop the newline inserted in front of the end sentinel
+                    byte[] bytes = output.toByteArray();
+                    int len = bytes.length > 0 ? bytes.length - 1 : 0;
+                    return new Result(new String(bytes, 0, len, StandardCharsets.UTF_8), exitCode);
+                }
+            }
+            line.writeTo(output);
+            output.write('\n');
+        }
+    }
+
+    private void readLine(ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        int b;
+        while ((b = inputStream.read()) != '\n') {
+            if (b == -1)
+                throw new EOFException("Shell session closed by device");
+            line.write(b);
+        }
+    }
+
+    private void closeStream() {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+        stream = null;
+        inputStream = null;
+        outputStream = null;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closeStream();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
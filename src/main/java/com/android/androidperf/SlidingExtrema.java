@@ -0,0 +1,114 @@
+package com.android.androidperf;
+
+import java.util.Arrays;
+
+/**
+ * Minimum and maximum of the points of a series inside a window sliding along the x axis.
+ *
+ * <p>Two monotonic deques hold the candidates: points are appended in ascending x order,
+ * dropping from the back the candidates they dominate, and leave from the front once they
+ * fall out of the window. Both operations are amortized O(1), and the extremes are read
+ * from the fronts.</p>
+ */
+final class SlidingExtrema {
+    /**
+     * Deque of (x, y) candidates with y monotonic from front to back, on ring buffers
+     */
+    private static final class MonotonicDeque {
+        private final boolean keepsMax;
+        private double[] xs = new double[64];
+        private double[] ys = new double[64];
+        private int head = 0;
+        private int size = 0;
+
+        MonotonicDeque(boolean keepsMax) {
+            this.keepsMax = keepsMax;
+        }
+
+        private int index(int i) {
+            return (head + i) & (xs.length - 1);
+        }
+
+        void add(double x, double y) {
+            // a later point at least as extreme makes the previous ones useless
+            while (size > 0) {
+                double last = ys[index(size - 1)];
+                if (keepsMax ? last > y : last < y)
+                    break;
+                size--;
+            }
+            if (size == xs.length)
+                grow();
+            xs[index(size)] = x;
+            ys[index(size)] = y;
+            size++;
+        }
+
+        private void grow() {
+            double[] newXs = new double[xs.length * 2];
+            double[] newYs = new double[ys.length * 2];
+            for (int i = 0; i < size; i++) {
+                newXs[i] = xs[index(i)];
+                newYs[i] = ys[index(i)];
+            }
+            xs = newXs;
+            ys = newYs;
+            head = 0;
+        }
+
+        void evictBefore(double x) {
+            while (size > 0 && xs[head] < x) {
+                head = index(1);
+                size--;
+            }
+        }
+
+        double front() {
+            return ys[head];
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+            Arrays.fill(xs, 0);
+        }
+    }
+
+    private final MonotonicDeque min = new MonotonicDeque(false);
+    private final MonotonicDeque max = new MonotonicDeque(true);
+
+    /**
+     * Add a point entering the window, x values are expected in ascending order
+     */
+    void add(double x, double y) {
+        min.add(x, y);
+        max.add(x, y);
+    }
+
+    /**
+     * Remove the points left of the window
+     *
+     * @param lower new start of the window
+     */
+    void evictBefore(double lower) {
+        min.evictBefore(lower);
+        max.evictBefore(lower);
+    }
+
+    void clear() {
+        min.clear();
+        max.clear();
+    }
+
+    boolean isEmpty() {
+        return min.size == 0;
+    }
+
+    double getMin() {
+        return min.front();
+    }
+
+    double getMax() {
+        return max.front();
+    }
+}
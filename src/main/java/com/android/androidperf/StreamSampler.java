@@ -0,0 +1,269 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import se.vidstige.jadb.ExecStream;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Push mode of the perf services (-Dandroidperf.stream=true): one long-running shell loop on the
+ * device prints the raw data of all streaming services at the sampling rate, and a reader thread
+ * routes every record to its service, so that no sample needs a round-trip of its own.
+ *
+ * <p>The loop runs on a plain "exec:" shell, the server is not involved. Every tick is framed by
+ * unique sentinel lines, the first one carrying the uptime of the device in seconds:</p>
+ * <pre>
+ * __APERF_x_F 12345.67
+ * __APERF_x_R CPU
+ * (output of the stream command of the CPU service)
+ * __APERF_x_R Network
+ * (output of the stream command of the Network service)
+ * __APERF_x_E
+ * </pre>
+ * A stream that fails or stalls is opened again after a delay, the services keep their state.
+ */
+final class StreamSampler implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(StreamSampler.class);
+    private static final long REOPEN_DELAY = 5000;
+    // a stream silent for this many ticks, and at least MIN_TIMEOUT, is considered stalled
+    private static final int TIMEOUT_TICKS = 10;
+    private static final int MIN_TIMEOUT = 5000;
+
+    private final JadbDevice jadbDevice;
+    private final LinkedHashMap<String, BasePerfService> services = new LinkedHashMap<>();
+    private final String sentinelPrefix;
+    private volatile long period;
+    private volatile boolean running = false;
+    // set when the stream is closed to be opened again at once, e.g. with a new period
+    private volatile boolean restarting = false;
+    private volatile ExecStream stream = null;
+    private Thread reader = null;
+    // only touched by the reader thread
+    private long frames = 0;
+    private long dropped = 0;
+
+    /**
+     * @param device   the device
+     * @param services the services to stream, with a stream command
+     * @param period   period of the loop in milliseconds
+     */
+    StreamSampler(JadbDevice device, List<BasePerfService> services, long period) {
+        jadbDevice = device;
+        services.forEach(service -> this.services.put(service.getServiceName(), service));
+        this.period = period;
+        sentinelPrefix = String.format("__APERF_%08x_", ThreadLocalRandom.current().nextInt());
+    }
+
+    synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        reader = PerfExecutors.namedThreadFactory("perf-stream-" + jadbDevice.getSerial()).newThread(this::run);
+        reader.start();
+    }
+
+    /**
+     * Change the period of the loop, the stream is restarted with the new period
+     *
+     * @param period period in milliseconds
+     */
+    void setPeriod(long period) {
+        if (period == this.period)
+            return;
+        this.period = period;
+        // the reader opens the stream again right away
+        restarting = true;
+        closeStream();
+    }
+
+    long getPeriod() {
+        return period;
+    }
+
+    /**
+     * @return the shell script of the loop, fed to the shell on its stdin
+     */
+    String buildScript() {
+        StringBuilder script = new StringBuilder();
+        script.append("n=0\n");
+        script.append("while :; do\n");
+        script.append("read -r up idle < /proc/uptime\n");
+        script.append("echo ").append(sentinelPrefix).append("F $up\n");
+        for (var entry : services.entrySet()) {
+            String cmd = entry.getValue().getStreamCommand();
+            if (cmd == null)
+                continue;
+            script.append("echo ").append(sentinelPrefix).append("R ").append(entry.getKey()).append('\n');
+            script.append("{ ").append(cmd).append("\n} 2>/dev/null\n");
+        }
+        script.append("echo ").append(sentinelPrefix).append("E\n");
+        script.append("n=$((n + 1))\n");
+        // toolbox sleep of old devices only takes whole seconds
+        script.append(String.format(Locale.ROOT, "sleep %.3f 2>/dev/null || sleep 1\n", period / 1000.));
+        // the commands must not read the rest of the script
+        script.append("done </dev/null\n");
+        return script.toString();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                readFrames(open());
+                if (running && !restarting)
+                    LOGGER.warn(String.format("Stream of %s ended, reopening in %d ms", jadbDevice.getSerial(), REOPEN_DELAY));
+            } catch (IOException | JadbException e) {
+                if (running && !restarting)
+                    LOGGER.warn(String.format("Stream of %s failed, reopening in %d ms: %s",
+                            jadbDevice.getSerial(), REOPEN_DELAY, e.getMessage()));
+            } finally {
+                closeStream();
+            }
+            if (restarting) {
+                restarting = false;
+                continue;
+            }
+            try {
+                Thread.sleep(REOPEN_DELAY);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        LOGGER.info(report());
+    }
+
+    private InputStream open() throws IOException, JadbException {
+        ExecStream execStream = jadbDevice.executeInteractive("sh");
+        stream = execStream;
+        if (!running) {
+            closeStream();
+            throw new EOFException("Stream closed");
+        }
+        execStream.setTimeout((int) Math.max(MIN_TIMEOUT, TIMEOUT_TICKS * period));
+        OutputStream output = execStream.getOutputStream();
+        output.write(buildScript().getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        LOGGER.debug(String.format("Stream of %s opened, period %d ms", jadbDevice.getSerial(), period));
+        return new BufferedInputStream(execStream.getInputStream());
+    }
+
+    /**
+     * Read frames until the stream ends, and hand every complete frame to the services
+     */
+    private void readFrames(InputStream input) throws IOException {
+        String framePrefix = sentinelPrefix + "F ";
+        String recordPrefix = sentinelPrefix + "R ";
+        String frameEnd = sentinelPrefix + "E";
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        LinkedHashMap<String, String> records = new LinkedHashMap<>();
+        StringBuilder record = new StringBuilder(4096);
+        String source = null;
+        double uptime = Double.NaN;
+        boolean inFrame = false;
+        while (readLine(input, line)) {
+            String str = line.toString(StandardCharsets.UTF_8);
+            if (!str.startsWith(sentinelPrefix)) {
+                // anything outside a record, e.g. an error of the shell, is ignored
+                if (source != null)
+                    record.append(str).append('\n');
+                continue;
+            }
+            if (str.startsWith(framePrefix)) {
+                if (inFrame)
+                    dropped++;
+                records.clear();
+                source = null;
+                inFrame = true;
+                try {
+                    uptime = Double.parseDouble(str.substring(framePrefix.length()).strip());
+                } catch (NumberFormatException e) {
+                    uptime = Double.NaN;
+                }
+            } else if (str.startsWith(recordPrefix) && inFrame) {
+                if (source != null)
+                    records.put(source, record.toString());
+                source = str.substring(recordPrefix.length()).strip();
+                record.setLength(0);
+            } else if (str.equals(frameEnd) && inFrame) {
+                if (source != null)
+                    records.put(source, record.toString());
+                source = null;
+                inFrame = false;
+                if (Double.isNaN(uptime)) {
+                    dropped++;
+                    continue;
+                }
+                frames++;
+                dispatch(uptime, records);
+            }
+        }
+    }
+
+    private void dispatch(double uptime, Map<String, String> records) {
+        records.forEach((name, text) -> {
+            BasePerfService service = services.get(name);
+            if (service == null)
+                return;
+            try {
+                service.streamSample(uptime, period, text);
+            } catch (RuntimeException e) {
+                LOGGER.error(String.format("%s cannot handle stream record", name), e);
+            }
+        });
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private static boolean readLine(InputStream input, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b == -1)
+                return false;
+            if (b != '\r')
+                line.write(b);
+        }
+        return true;
+    }
+
+    private void closeStream() {
+        ExecStream execStream = stream;
+        stream = null;
+        if (execStream != null) {
+            try {
+                execStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    String report() {
+        return String.format("Stream of %s: %d frames, %d dropped, period %d ms, services %s",
+                jadbDevice.getSerial(), frames, dropped, period, services.keySet());
+    }
+
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = reader;
+            reader = null;
+        }
+        closeStream();
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
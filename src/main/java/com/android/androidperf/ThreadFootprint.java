@@ -0,0 +1,70 @@
+package com.android.androidperf;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of the threads and memory used by the process, to compare the platform
+ * and virtual thread modes of {@link PerfExecutors} on the same set of devices.
+ * Virtual threads are not listed by the JVM, only the platform threads carrying them are.
+ */
+final class ThreadFootprint {
+    private static final long DEFAULT_STACK_SIZE = 1024 * 1024;
+
+    private ThreadFootprint() {
+    }
+
+    /**
+     * @param deviceCount number of devices being profiled
+     * @return a human-readable report
+     */
+    static String report(int deviceCount) {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        long stackSize = getStackSize();
+
+        // group threads by name without the trailing index, e.g. perf-FPSPerfService-2
+        Map<String, Integer> groups = new TreeMap<>();
+        for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+            if (info == null)
+                continue;
+            String name = info.getThreadName().replaceAll("-\\d+$", "");
+            groups.merge(name, 1, Integer::sum);
+        }
+
+        int live = threadBean.getThreadCount();
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Thread footprint (%s mode, %d devices): live platform threads=%d peak=%d daemon=%d, ",
+                PerfExecutors.getMode(), deviceCount, live, threadBean.getPeakThreadCount(), threadBean.getDaemonThreadCount()));
+        builder.append(String.format("reserved stacks=%.1f MB, heap used=%.1f MB, non-heap used=%.1f MB",
+                live * stackSize / 1024. / 1024.,
+                memoryBean.getHeapMemoryUsage().getUsed() / 1024. / 1024.,
+                memoryBean.getNonHeapMemoryUsage().getUsed() / 1024. / 1024.));
+        groups.forEach((name, count) -> {
+            if (count > 1 || name.startsWith("perf-"))
+                builder.append(String.format("%n  %-32s %d", name, count));
+        });
+        return builder.toString();
+    }
+
+    private static long getStackSize() {
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!arg.startsWith("-Xss"))
+                continue;
+            String value = arg.substring(4).toLowerCase();
+            long unit = 1;
+            if (value.endsWith("k")) unit = 1024;
+            else if (value.endsWith("m")) unit = 1024 * 1024;
+            else if (value.endsWith("g")) unit = 1024 * 1024 * 1024;
+            try {
+                return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return DEFAULT_STACK_SIZE;
+    }
+}
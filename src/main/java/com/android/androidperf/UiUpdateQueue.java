@@ -0,0 +1,158 @@
+package com.android.androidperf;
+
+import javafx.animation.AnimationTimer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staging buffer between the samplers of all devices and the charts.
+ *
+ * <p>Samplers post updates from any thread without locking. On every pulse of the FX thread
+ * the pending updates are applied in one batch, and every chart touched by the batch is then
+ * rendered once (see {@link #invalidate(PerfChart)}), so the number of layouts does not
+ * grow with the number of devices or the sampling rate. Sample updates that do not fit in the
+ * buffer are dropped and counted, see {@link #report()}.</p>
+ */
+final class UiUpdateQueue {
+    private static final Logger LOGGER = LogManager.getLogger(UiUpdateQueue.class);
+    private static final int MAX_PENDING = 50000;
+    // updates applied per pulse at most, the rest waits for the next pulse
+    private static final int MAX_PER_PULSE = 10000;
+    private static final long REPORT_PERIOD = TimeUnit.SECONDS.toNanos(60);
+
+    private static final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger depth = new AtomicInteger();
+    private static final AtomicInteger maxDepth = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    // only touched on the FX thread
+    private static final LinkedHashSet<PerfChart> dirtyCharts = new LinkedHashSet<>();
+    private static AnimationTimer timer = null;
+    private static long pulses = 0;
+    private static long applied = 0;
+    private static long lastReport = 0;
+
+    private UiUpdateQueue() {
+    }
+
+    /**
+     * Queue an update to be run on the FX thread. The update is never dropped.
+     *
+     * @param update the update
+     */
+    static void post(Runnable update) {
+        pending.offer(update);
+        maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+    }
+
+    /**
+     * Queue an update that may be dropped when the UI does not keep up, e.g. a sample
+     *
+     * @param update the update
+     * @return false if the update was dropped
+     */
+    static boolean offer(Runnable update) {
+        if (depth.get() >= MAX_PENDING) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        post(update);
+        return true;
+    }
+
+    /**
+     * Render a chart once the current batch has been applied, must be called on the FX thread
+     *
+     * @param chart the chart whose data changed
+     */
+    static void invalidate(PerfChart chart) {
+        if (timer == null)
+            chart.flushRender();
+        else
+            dirtyCharts.add(chart);
+    }
+
+    /**
+     * Start applying updates, must be called on the FX thread
+     */
+    static void start() {
+        if (timer != null)
+            return;
+        lastReport = System.nanoTime();
+        timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                flush(now);
+            }
+        };
+        timer.start();
+    }
+
+    static void stop() {
+        if (timer != null) {
+            timer.stop();
+            timer = null;
+            LOGGER.info(report());
+        }
+        pending.clear();
+        depth.set(0);
+        dirtyCharts.clear();
+    }
+
+    private static void flush(long now) {
+        pulses++;
+        Runnable update;
+        int count = 0;
+        while (count < MAX_PER_PULSE && (update = pending.poll()) != null) {
+            depth.decrementAndGet();
+            count++;
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("UI update failed", e);
+            }
+        }
+        applied += count;
+        if (!dirtyCharts.isEmpty()) {
+            for (PerfChart chart : dirtyCharts) {
+                chart.flushRender();
+            }
+            dirtyCharts.clear();
+        }
+        if (now - lastReport >= REPORT_PERIOD) {
+            lastReport = now;
+            LOGGER.debug(report());
+        }
+    }
+
+    /**
+     * @return number of updates waiting for the FX thread
+     */
+    static int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * @return the largest number of updates that were waiting at the same time
+     */
+    static int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * @return number of sample updates dropped because the UI did not keep up
+     */
+    static long getDropped() {
+        return dropped.get();
+    }
+
+    static String report() {
+        return String.format("UI update queue: depth=%d max=%d dropped=%d applied=%d pulses=%d",
+                getDepth(), getMaxDepth(), getDropped(), applied, pulses);
+    }
+}
@@ -1,6 +1,7 @@
 module com.example.androidperf {
     requires javafx.controls;
     requires javafx.fxml;
+    requires java.management;
     requires jproc;
     requires org.apache.commons.lang3;
     requires org.controlsfx.controls;
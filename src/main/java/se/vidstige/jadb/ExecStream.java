@@ -0,0 +1,39 @@
+package se.vidstige.jadb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A running "exec:" service with both directions available: whatever is written to
+ * the output stream reaches the process' stdin, and its stdout/stderr can be read
+ * from the input stream. Used for long-lived processes such as a shell fed command by command.
+ */
+public class ExecStream implements Closeable {
+    private final Transport transport;
+
+    ExecStream(Transport transport) {
+        this.transport = transport;
+    }
+
+    public InputStream getInputStream() {
+        return transport.getInputStream();
+    }
+
+    public OutputStream getOutputStream() {
+        return transport.getOutputStream();
+    }
+
+    /**
+     * @param timeout read timeout in milliseconds, 0 for infinite
+     */
+    public void setTimeout(int timeout) throws IOException {
+        transport.setTimeout(timeout);
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+}
@@ -7,4 +7,39 @@ import java.io.IOException;
  */
 public interface ITransportFactory {
     Transport createTransport() throws IOException;
+
+    /**
+     * Create a transport that is already switched to the given device.
+     *
+     * @param serial device serial, or null for any device
+     * @return an unclosed transport, owned by the caller
+     */
+    default Transport createDeviceTransport(String serial) throws IOException, JadbException {
+        return switchToDevice(createTransport(), serial);
+    }
+
+    /**
+     * @return the non-blocking engine to run services on, or null if this factory only offers blocking transports
+     */
+    default NioTransportEngine getAsyncEngine() {
+        return null;
+    }
+
+    /**
+     * Switch a newly created transport to the given device
+     *
+     * @param transport a transport connected to the ADB server
+     * @param serial    device serial, or null for any device
+     * @return the same transport; it is closed if switching fails
+     */
+    static Transport switchToDevice(Transport transport, String serial) throws IOException, JadbException {
+        try {
+            transport.send(serial == null ? "host:transport-any" : "host:transport:" + serial);
+            transport.verifyResponse();
+        } catch (IOException | JadbException e) {
+            transport.close();
+            throw e;
+        }
+        return transport;
+    }
 }
@@ -1,18 +1,28 @@
 package se.vidstige.jadb;
 
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class JadbConnection implements ITransportFactory {
+public class JadbConnection implements ITransportFactory, Closeable {
 
     private final String host;
     private final int port;
 
     private static final int DEFAULTPORT = 5037;
+    private static final long DEFAULT_POOL_MAX_IDLE_MILLIS = 30000;
+
+    private final ConcurrentHashMap<String, TransportPool> transportPools = new ConcurrentHashMap<>();
+    private volatile int transportPoolSize = 0;
+    private ExecutorService poolExecutor = null;
+    private NioTransportEngine asyncEngine = null;
 
     public JadbConnection() {
         this("localhost", DEFAULTPORT);
@@ -27,6 +37,82 @@ public class JadbConnection implements ITransportFactory {
         return new Transport(new Socket(host, port));
     }
 
+    /**
+     * Keep up to {@code size} transports per device switched to the device ahead of time.
+     * A size of 0 disables pooling, which is the default.
+     *
+     * @param size number of idle transports kept per device
+     */
+    public synchronized void enableTransportPool(int size) {
+        transportPoolSize = Math.max(size, 0);
+        if (transportPoolSize > 0 && poolExecutor == null) {
+            poolExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "jadb-transport-pool");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Run services of {@link JadbDevice#executeAsync} on a selector-based engine, so that commands in
+     * flight do not occupy a thread each. The blocking API then waits on the engine as well.
+     *
+     * @param ioThreads number of selector threads
+     */
+    public synchronized void enableAsyncEngine(int ioThreads) throws IOException {
+        if (asyncEngine == null)
+            asyncEngine = new NioTransportEngine(host, port, ioThreads);
+    }
+
+    @Override
+    public NioTransportEngine getAsyncEngine() {
+        return asyncEngine;
+    }
+
+    @Override
+    public Transport createDeviceTransport(String serial) throws IOException, JadbException {
+        if (serial == null || transportPoolSize <= 0)
+            return ITransportFactory.super.createDeviceTransport(serial);
+        TransportPool pool = transportPools.computeIfAbsent(serial, s ->
+                new TransportPool(this, s, transportPoolSize, DEFAULT_POOL_MAX_IDLE_MILLIS, poolExecutor));
+        return pool.take();
+    }
+
+    /**
+     * @param serial device serial
+     * @return the transport pool of the device, or null if the device has not used one yet
+     */
+    public TransportPool getTransportPool(String serial) {
+        return transportPools.get(serial);
+    }
+
+    /**
+     * Close the idle transports of a device, e.g. when it is disconnected
+     *
+     * @param serial device serial
+     */
+    public void closeTransportPool(String serial) {
+        TransportPool pool = transportPools.remove(serial);
+        if (pool != null)
+            pool.close();
+    }
+
+    @Override
+    public synchronized void close() {
+        transportPoolSize = 0;
+        transportPools.values().forEach(TransportPool::close);
+        transportPools.clear();
+        if (poolExecutor != null) {
+            poolExecutor.shutdownNow();
+            poolExecutor = null;
+        }
+        if (asyncEngine != null) {
+            asyncEngine.close();
+            asyncEngine = null;
+        }
+    }
+
     public String getHostVersion() throws IOException, JadbException {
         try (Transport transport = createTransport()) {
             transport.send("host:version");
@@ -3,9 +3,13 @@ package se.vidstige.jadb;
 import se.vidstige.jadb.managers.Bash;
 
 import java.io.*;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class JadbDevice {
     @SuppressWarnings("squid:S00115")
@@ -32,6 +36,8 @@ public class JadbDevice {
     private final String serial;
     private final ITransportFactory transportFactory;
     private static final int DEFAULT_TCPIP_PORT = 5555;
+    // read timeout of the command services in milliseconds, 0 for infinite
+    private volatile int execTimeout = 0;
 
     JadbDevice(String serial, ITransportFactory tFactory) {
         this.serial = serial;
@@ -47,6 +53,17 @@ public class JadbDevice {
         this.transportFactory = tFactory;
     }
 
+    /**
+     * Limit how long the command services ({@link #execute(String, String...)},
+     * {@link #executeShell(String, String...)} and {@link #executeAsync(String, String...)}) wait for output,
+     * a command that stays silent for longer fails with a {@link java.net.SocketTimeoutException}.
+     *
+     * @param timeout read timeout in milliseconds, 0 for infinite
+     */
+    public void setExecTimeout(int timeout) {
+        execTimeout = timeout;
+    }
+
     private State convertState(String type) {
         switch (type) {
             case "device":     return State.Device;
@@ -63,12 +80,47 @@ public class JadbDevice {
     }
 
     private Transport getTransport() throws IOException, JadbException {
-        Transport transport = transportFactory.createTransport();
         // Do not use try-with-resources here. We want to return unclosed Transport and it is up to caller
-        // to close it. Here we close it only in case of exception.
+        // to close it. The factory closes it only in case of exception.
+        return transportFactory.createDeviceTransport(serial);
+    }
+
+    /**
+     * Open a device service, e.g. "exec:ls".
+     * A pooled transport may have gone stale while idle (device reconnected, server restarted),
+     * in which case the service is retried once on a freshly handshaked transport.
+     *
+     * @param service the service request
+     * @return an unclosed transport connected to the service
+     */
+    private Transport openService(String service) throws IOException, JadbException {
+        Transport transport = getTransport();
         try {
-            send(transport, serial == null ? "host:transport-any" : "host:transport:" + serial );
-        } catch (IOException|JadbException e) {
+            send(transport, service);
+            return transport;
+        } catch (IOException | JadbException e) {
+            transport.close();
+            if (!transport.isPooled())
+                throw e;
+        }
+        transport = ITransportFactory.switchToDevice(transportFactory.createTransport(), serial);
+        try {
+            send(transport, service);
+        } catch (IOException | JadbException e) {
+            transport.close();
+            throw e;
+        }
+        return transport;
+    }
+
+    /**
+     * Open a command service with the read timeout of the commands
+     */
+    private Transport openCommand(String service) throws IOException, JadbException {
+        Transport transport = openService(service);
+        try {
+            transport.setTimeout(execTimeout);
+        } catch (IOException e) {
             transport.close();
             throw e;
         }
@@ -97,9 +149,8 @@ public class JadbDevice {
      * @throws JadbException
      */
     public InputStream executeShell(String command, String... args) throws IOException, JadbException {
-        Transport transport = getTransport();
         StringBuilder shellLine = buildCmdLine(command, args);
-        send(transport, "shell:" + shellLine.toString());
+        Transport transport = openCommand("shell:" + shellLine.toString());
         return new AdbFilterInputStream(new BufferedInputStream(transport.getInputStream()));
     }
 
@@ -110,9 +161,8 @@ public class JadbDevice {
      */
     @Deprecated
     public void executeShell(OutputStream output, String command, String... args) throws IOException, JadbException {
-        try (Transport transport = getTransport()) {
-            StringBuilder shellLine = buildCmdLine(command, args);
-            send(transport, "shell:" + shellLine.toString());
+        StringBuilder shellLine = buildCmdLine(command, args);
+        try (Transport transport = openService("shell:" + shellLine.toString())) {
             if (output == null)
                 return;
 
@@ -134,29 +184,92 @@ public class JadbDevice {
      * @throws JadbException
      */
     public InputStream execute(String command, String... args) throws IOException, JadbException {
-        Transport transport = getTransport();
         StringBuilder shellLine = buildCmdLine(command, args);
-        send(transport, "exec:" + shellLine.toString());
+        NioTransportEngine engine = transportFactory.getAsyncEngine();
+        if (engine != null)
+            return new ByteArrayInputStream(await(engine.submit(serial, "exec:" + shellLine.toString())));
+        Transport transport = openCommand("exec:" + shellLine.toString());
         return new BufferedInputStream(transport.getInputStream());
     }
 
+    /** <p>Execute a command without blocking the calling thread.</p>
+     *
+     * <p>With an asynchronous engine available from the transport factory the command runs on it, otherwise
+     * it runs on the calling thread and the returned future is already completed.</p>
+     *
+     * @param command main command to run, e.g. "ls"
+     * @param args arguments to the command.
+     * @return the future combined stdout/stderr output.
+     */
+    public CompletableFuture<byte[]> executeAsync(String command, String... args) {
+        StringBuilder shellLine = buildCmdLine(command, args);
+        NioTransportEngine engine = transportFactory.getAsyncEngine();
+        if (engine != null)
+            return engine.submit(serial, "exec:" + shellLine.toString());
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try (Transport transport = openCommand("exec:" + shellLine.toString())) {
+            future.complete(transport.getInputStream().readAllBytes());
+        } catch (IOException | JadbException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private byte[] await(CompletableFuture<byte[]> future) throws IOException, JadbException {
+        int timeout = execTimeout;
+        try {
+            return timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new SocketTimeoutException("Timed out waiting for command output");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for command output");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof JadbException)
+                throw (JadbException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /** <p>Start a command and keep both its input and output open.</p>
+     *
+     * <p>Like {@link #execute(String, String...)} the stream is raw, without a PTY, so nothing is echoed
+     * back and line endings are left untouched.</p>
+     *
+     * @param command main command to run, e.g. "sh"
+     * @param args arguments to the command.
+     * @return the running process, owned by the caller
+     * @throws IOException
+     * @throws JadbException
+     */
+    public ExecStream executeInteractive(String command, String... args) throws IOException, JadbException {
+        StringBuilder shellLine = buildCmdLine(command, args);
+        return new ExecStream(openService("exec:" + shellLine.toString()));
+    }
+
     public String forward(ForwardType localType, String localPort, ForwardType remoteType, String remotePort) throws IOException, JadbException {
         String local = String.format("%s:%s", localType == ForwardType.TCP ? "tcp" : "localabstract", localPort);
         String remote = String.format("%s:%s", remoteType == ForwardType.TCP ? "tcp" : "localabstract", remotePort);
-        Transport transport = getTransport();
         if (serial == null)
             throw new JadbException("No serial number");
-        send(transport, String.format("host-serial:%s:forward:%s;%s", serial, local, remote));
-        return new String(transport.getInputStream().readAllBytes());
+        try (Transport transport = openService(String.format("host-serial:%s:forward:%s;%s", serial, local, remote))) {
+            return new String(transport.getInputStream().readAllBytes());
+        }
     }
 
     public void clearForward() throws IOException, JadbException {
-        Transport transport = getTransport();
         if (serial == null)
             throw new JadbException("No serial number");
         String hostPrefix = "host-serial:" + serial;
-        send(transport, hostPrefix + ":list-forward");
-        String result = new String(transport.getInputStream().readAllBytes());
+        String result;
+        try (Transport transport = openService(hostPrefix + ":list-forward")) {
+            result = new String(transport.getInputStream().readAllBytes());
+        }
         result = result.substring(4);
         if (!result.isEmpty()) {
             String[] forwardInfo = result.split("\n");
@@ -164,9 +277,9 @@ public class JadbDevice {
                 String forward = forwardInfo[i];
                 String[] info = forward.split("\\s+");
                 if (info.length == 3 && info[0].equals(serial)) {
-                    transport = getTransport();
-                    send(transport, hostPrefix + ":killforward:"+info[1]);
-                    transport.getInputStream().readAllBytes();
+                    try (Transport transport = openService(hostPrefix + ":killforward:" + info[1])) {
+                        transport.getInputStream().readAllBytes();
+                    }
                 }
             }
         }
@@ -174,9 +287,9 @@ public class JadbDevice {
 
     public String killForward(ForwardType localType, String localPort) throws IOException, JadbException {
         String local = String.format("%s:%s", localType == ForwardType.TCP ? "tcp" : "localabstract", localPort);
-        Transport transport = getTransport();
-        send(transport, "host:killforward:"+local);
-        return new String(transport.getInputStream().readAllBytes());
+        try (Transport transport = openService("host:killforward:" + local)) {
+            return new String(transport.getInputStream().readAllBytes());
+        }
     }
 
     /**
@@ -218,8 +331,8 @@ public class JadbDevice {
     }
 
     public List<RemoteFile> list(String remotePath) throws IOException, JadbException {
-        try (Transport transport = getTransport()) {
-            SyncTransport sync = transport.startSync();
+        try (Transport transport = openService("sync:")) {
+            SyncTransport sync = transport.getSyncTransport();
             sync.send("LIST", remotePath);
 
             List<RemoteFile> result = new ArrayList<>();
@@ -231,8 +344,8 @@ public class JadbDevice {
     }
 
     public void push(InputStream source, long lastModified, int mode, RemoteFile remote) throws IOException, JadbException {
-        try (Transport transport = getTransport()) {
-            SyncTransport sync = transport.startSync();
+        try (Transport transport = openService("sync:")) {
+            SyncTransport sync = transport.getSyncTransport();
             sync.send("SEND", remote.getPath() + "," + mode);
 
             sync.sendStream(source);
@@ -249,8 +362,8 @@ public class JadbDevice {
     }
 
     public void pull(RemoteFile remote, OutputStream destination) throws IOException, JadbException {
-        try (Transport transport = getTransport()) {
-            SyncTransport sync = transport.startSync();
+        try (Transport transport = openService("sync:")) {
+            SyncTransport sync = transport.getSyncTransport();
             sync.send("RECV", remote.getPath());
 
             sync.readChunksTo(destination);
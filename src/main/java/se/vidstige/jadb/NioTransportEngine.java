@@ -0,0 +1,297 @@
+package se.vidstige.jadb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs ADB services on non-blocking socket channels, driven by one or a few selector threads.
+ *
+ * <p>Each request walks through the usual protocol (host:transport, then the service,
+ * each acknowledged with OKAY) and collects the service output until the server closes
+ * the connection. Results are delivered as {@link CompletableFuture}s, so no thread is
+ * blocked while a command is in flight, however many devices are being served.</p>
+ */
+public class NioTransportEngine implements Closeable {
+    private final InetSocketAddress address;
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    public NioTransportEngine(String host, int port, int ioThreads) throws IOException {
+        address = new InetSocketAddress(host, port);
+        loops = new IoLoop[Math.max(ioThreads, 1)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i);
+        }
+        for (IoLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Run a device service and collect its whole output
+     *
+     * @param serial  device serial, or null for any device
+     * @param service the service request, e.g. "exec:ls"
+     * @return the future output of the service
+     */
+    public CompletableFuture<byte[]> submit(String serial, String service) {
+        Request request = new Request(serial == null ? "host:transport-any" : "host:transport:" + serial, service);
+        if (closed) {
+            request.future.completeExceptionally(new IOException("Transport engine is closed"));
+            return request.future;
+        }
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            request.channel = channel;
+            request.connected = channel.connect(address);
+        } catch (IOException e) {
+            request.fail(e);
+            return request.future;
+        }
+        inFlight.incrementAndGet();
+        request.future.whenComplete((r, e) -> {
+            inFlight.decrementAndGet();
+            request.closeChannel();
+        });
+        loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(request);
+        return request.future;
+    }
+
+    /**
+     * @return number of requests currently in flight
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (IoLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private enum RequestState {
+        CONNECTING,
+        WRITE_TRANSPORT,
+        READ_TRANSPORT_STATUS,
+        WRITE_SERVICE,
+        READ_SERVICE_STATUS,
+        READ_FAIL_LENGTH,
+        READ_FAIL_MESSAGE,
+        READ_BODY
+    }
+
+    private static class Request {
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        final String transportCommand;
+        final String serviceCommand;
+        SocketChannel channel;
+        boolean connected;
+        RequestState state = RequestState.CONNECTING;
+        ByteBuffer pending;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        Request(String transportCommand, String serviceCommand) {
+            this.transportCommand = transportCommand;
+            this.serviceCommand = serviceCommand;
+        }
+
+        static ByteBuffer encode(String command) {
+            byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+            return ByteBuffer.wrap((String.format("%04x", bytes.length) + command).getBytes(StandardCharsets.UTF_8));
+        }
+
+        void startWrite(SelectionKey key, String command, RequestState writeState) {
+            pending = encode(command);
+            state = writeState;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void startRead(SelectionKey key, int length, RequestState readState) {
+            pending = ByteBuffer.allocate(length);
+            state = readState;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Advance the request as far as the channel allows
+         */
+        void handle(SelectionKey key, ByteBuffer readBuffer) throws IOException {
+            switch (state) {
+                case CONNECTING:
+                    if (connected || channel.finishConnect())
+                        startWrite(key, transportCommand, RequestState.WRITE_TRANSPORT);
+                    break;
+                case WRITE_TRANSPORT:
+                case WRITE_SERVICE:
+                    channel.write(pending);
+                    if (!pending.hasRemaining())
+                        startRead(key, 4, state == RequestState.WRITE_TRANSPORT ? RequestState.READ_TRANSPORT_STATUS : RequestState.READ_SERVICE_STATUS);
+                    break;
+                case READ_TRANSPORT_STATUS:
+                case READ_SERVICE_STATUS:
+                case READ_FAIL_LENGTH:
+                case READ_FAIL_MESSAGE:
+                    if (channel.read(pending) < 0)
+                        throw new IOException("Connection closed by ADB server");
+                    if (!pending.hasRemaining())
+                        onFieldRead(key);
+                    break;
+                case READ_BODY:
+                    int len;
+                    while ((len = channel.read(readBuffer.clear())) > 0) {
+                        body.write(readBuffer.array(), 0, len);
+                    }
+                    if (len < 0)
+                        future.complete(body.toByteArray());
+                    break;
+            }
+        }
+
+        private void onFieldRead(SelectionKey key) {
+            String field = new String(pending.array(), StandardCharsets.UTF_8);
+            switch (state) {
+                case READ_TRANSPORT_STATUS:
+                case READ_SERVICE_STATUS:
+                    if (!"OKAY".equals(field))
+                        startRead(key, 4, RequestState.READ_FAIL_LENGTH);
+                    else if (state == RequestState.READ_TRANSPORT_STATUS)
+                        startWrite(key, serviceCommand, RequestState.WRITE_SERVICE);
+                    else
+                        startRead(key, 0, RequestState.READ_BODY);
+                    break;
+                case READ_FAIL_LENGTH:
+                    int length;
+                    try {
+                        length = Integer.parseInt(field, 16);
+                    } catch (NumberFormatException e) {
+                        future.completeExceptionally(new JadbException("command failed: " + field));
+                        return;
+                    }
+                    startRead(key, length, RequestState.READ_FAIL_MESSAGE);
+                    if (length == 0)
+                        future.completeExceptionally(new JadbException("command failed: "));
+                    break;
+                case READ_FAIL_MESSAGE:
+                    future.completeExceptionally(new JadbException("command failed: " + field));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void fail(Throwable e) {
+            future.completeExceptionally(e);
+            closeChannel();
+        }
+
+        void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private class IoLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Request> registrations = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        // set once the loop no longer takes registrations
+        private volatile boolean exited = false;
+
+        IoLoop(int index) throws IOException {
+            super("jadb-nio-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void register(Request request) {
+            registrations.offer(request);
+            // the loop may have drained the registrations already, fail the request here instead
+            if (exited)
+                failRegistrations();
+            else
+                selector.wakeup();
+        }
+
+        private void failRegistrations() {
+            Request request;
+            while ((request = registrations.poll()) != null) {
+                request.fail(new IOException("Transport engine is closed"));
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    Request request;
+                    while ((request = registrations.poll()) != null) {
+                        try {
+                            int ops = request.connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+                            SelectionKey key = request.channel.register(selector, ops, request);
+                            if (request.connected)
+                                request.startWrite(key, request.transportCommand, RequestState.WRITE_TRANSPORT);
+                        } catch (IOException e) {
+                            request.fail(e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Request current = (Request) key.attachment();
+                        if (current.future.isDone()) {
+                            key.cancel();
+                            continue;
+                        }
+                        try {
+                            current.handle(key, readBuffer);
+                        } catch (IOException | RuntimeException e) {
+                            current.fail(e);
+                        }
+                        if (current.future.isDone())
+                            key.cancel();
+                    }
+                }
+            } catch (IOException | ClosedSelectorException ignored) {
+            } finally {
+                exited = true;
+                failRegistrations();
+                IOException closedException = new IOException("Transport engine is closed");
+                try {
+                    for (SelectionKey key : selector.keys()) {
+                        ((Request) key.attachment()).fail(closedException);
+                    }
+                    selector.close();
+                } catch (IOException | ClosedSelectorException ignored) {
+                }
+            }
+        }
+
+        void shutdown() {
+            selector.wakeup();
+        }
+    }
+}
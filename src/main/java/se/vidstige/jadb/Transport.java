@@ -10,16 +10,19 @@ class Transport implements Closeable {
     private final InputStream inputStream;
     private final DataInputStream dataInput;
     private final DataOutputStream dataOutput;
+    private final Socket socket;
+    private boolean pooled = false;
 
-    private Transport(OutputStream outputStream, InputStream inputStream) {
+    private Transport(OutputStream outputStream, InputStream inputStream, Socket socket) {
         this.outputStream = outputStream;
         this.inputStream = inputStream;
         this.dataInput = new DataInputStream(inputStream);
         this.dataOutput = new DataOutputStream(outputStream);
+        this.socket = socket;
     }
 
     public Transport(Socket socket) throws IOException {
-        this(socket.getOutputStream(), socket.getInputStream());
+        this(socket.getOutputStream(), socket.getInputStream(), socket);
     }
 
     public String readString() throws IOException {
@@ -36,6 +39,18 @@ class Transport implements Closeable {
         return inputStream;
     }
 
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * @param timeout read timeout in milliseconds, 0 for infinite
+     */
+    public void setTimeout(int timeout) throws IOException {
+        if (socket != null)
+            socket.setSoTimeout(timeout);
+    }
+
     public void verifyResponse() throws IOException, JadbException {
         String response = readString(4);
         if (!"OKAY".equals(response)) {
@@ -61,9 +76,27 @@ class Transport implements Closeable {
         writer.flush();
     }
 
+    /**
+     * @return true if this transport was handshaked ahead of time by a {@link TransportPool}
+     */
+    boolean isPooled() {
+        return pooled;
+    }
+
+    void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
     public SyncTransport startSync() throws IOException, JadbException {
         send("sync:");
         verifyResponse();
+        return getSyncTransport();
+    }
+
+    /**
+     * @return the sync protocol view of a transport on which "sync:" has already been acknowledged
+     */
+    SyncTransport getSyncTransport() {
         return new SyncTransport(dataOutput, dataInput);
     }
 
@@ -0,0 +1,145 @@
+package se.vidstige.jadb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a few transports per device that have already been switched to the device
+ * (i.e. "host:transport:&lt;serial&gt;" was sent and acknowledged), so that a service
+ * command can be sent right away.
+ *
+ * <p>ADB services are single-use: once a service runs on a transport the socket belongs
+ * to that service. Pooled transports are therefore handed out and never returned;
+ * the pool refills itself in the background instead.</p>
+ */
+public class TransportPool implements Closeable {
+    private final ITransportFactory factory;
+    private final String serial;
+    private final int capacity;
+    private final long maxIdleMillis;
+    private final Executor refillExecutor;
+
+    private final ConcurrentLinkedDeque<Entry> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean refillPending = new AtomicBoolean(false);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean closed = false;
+
+    private static class Entry {
+        final Transport transport;
+        final long createdAt;
+
+        Entry(Transport transport) {
+            this.transport = transport;
+            this.createdAt = System.currentTimeMillis();
+        }
+    }
+
+    TransportPool(ITransportFactory factory, String serial, int capacity, long maxIdleMillis, Executor refillExecutor) {
+        this.factory = factory;
+        this.serial = serial;
+        this.capacity = capacity;
+        this.maxIdleMillis = maxIdleMillis;
+        this.refillExecutor = refillExecutor;
+    }
+
+    /**
+     * Take a transport which is already switched to the device. Falls back to a fresh
+     * handshake when no idle transport is available.
+     *
+     * @return an unclosed transport, owned by the caller
+     */
+    Transport take() throws IOException, JadbException {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            if (now - entry.createdAt <= maxIdleMillis) {
+                hits.incrementAndGet();
+                scheduleRefill();
+                return entry.transport;
+            }
+            closeQuietly(entry.transport);
+        }
+        misses.incrementAndGet();
+        scheduleRefill();
+        return handshake();
+    }
+
+    /**
+     * Open a new transport and switch it to the device, bypassing the pool
+     */
+    Transport handshake() throws IOException, JadbException {
+        return ITransportFactory.switchToDevice(factory.createTransport(), serial);
+    }
+
+    private void scheduleRefill() {
+        if (closed || !refillPending.compareAndSet(false, true))
+            return;
+        try {
+            refillExecutor.execute(this::refill);
+        } catch (RuntimeException e) {
+            refillPending.set(false);
+        }
+    }
+
+    private void refill() {
+        try {
+            while (!closed && idle.size() < capacity) {
+                Transport transport = handshake();
+                transport.setPooled(true);
+                idle.addLast(new Entry(transport));
+            }
+        } catch (IOException | JadbException ignored) {
+            // the device is probably gone, the next take() will report the error
+        } finally {
+            refillPending.set(false);
+        }
+        if (closed)
+            drain();
+    }
+
+    private void drain() {
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            closeQuietly(entry.transport);
+        }
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public String getSerial() {
+        return serial;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        drain();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TransportPool[%s] hits=%d misses=%d idle=%d", serial, getHits(), getMisses(), getIdleCount());
+    }
+}